@@ -0,0 +1,400 @@
+/*
+ * - DependencyEngineBenchmark.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Measures how the dependency engine scales: loading scripts, asking for
+ * building orders and working out what depends on a changed script. It runs
+ * on the real scripts, and on generated trees of 1000, 10000 and 100000
+ * scripts.
+ * <p>
+ * Run from the <code>lfc</code> directory, after building the jar:
+ *<pre>
+ *javac -cp build/libLFClass.jar -d /tmp/bench \
+ *        bench/org/lfscript/buildmgr/DependencyEngineBenchmark.java
+ *java -cp build/libLFClass.jar:/tmp/bench \
+ *        org.lfscript.buildmgr.DependencyEngineBenchmark ../scripts
+ *</pre>
+ * Further arguments replace the default tree sizes. Generated trees are
+ * written to the temporary directory, and kept there for the next run.
+ * <p>
+ * Generated scripts look like real ones, with a download list, checksums,
+ * dependency levels and shell functions. Most scripts have a few
+ * dependencies, chosen so that a small number of scripts (like
+ * <code>glib2</code> in the real tree) is depended on by many. One in twenty
+ * scripts is a group with many dependencies. Everything nothing else depends
+ * on is selected for loading.
+ * <p>
+ * Every measurement is repeated for at least a second, after a second of
+ * warming up, and reported as the time per operation. Where the VM can
+ * tell, the number of bytes allocated per operation is reported as well.
+ * Loading 100000 scripts needs a larger heap than the default
+ * (<code>-Xmx512m</code>).
+ */
+public class DependencyEngineBenchmark {
+    private static final List<String> LEVELS
+            = Arrays.asList("REQUIRES", "RECOMMENDS");
+
+    private static final String[] REPOS
+            = { "lfs", "blfs", "extras", "site" };
+
+    private static final long MIN_TIME = 1000000000L;
+
+    /* A piece of work to time */
+    private static abstract class Task {
+        abstract void run() throws Exception;
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: DependencyEngineBenchmark " +
+                    "<script directory> [size ...]");
+            System.exit(1);
+        }
+
+        Set<String> real = new TreeSet<String>(Arrays.asList(
+                "xorg", "firefox", "kde", "fsos", "mate"));
+        run("real", args[0], real);
+
+        int[] sizes = { 1000, 10000, 100000 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        for (int size : sizes) {
+            File dir = new File(System.getProperty("java.io.tmpdir"),
+                    "lfc-bench-" + size);
+            Set<String> roots = generate(dir, size);
+            run("synthetic " + size, dir.getPath(), roots);
+        }
+    }
+
+    /*
+     * Runs all measurements on the scripts in 'search', selecting 'names'.
+     */
+    private static void run(String label, final String search,
+            final Set<String> names) throws Exception {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final File cacheFile = File.createTempFile("lfc-bench", ".cache");
+        cacheFile.deleteOnExit();
+
+        final DynamicScriptLoader loader = new DynamicScriptLoader(names,
+                search, LEVELS, null, threads);
+        final List<String> order = loader.getBuildOrder();
+
+        /* Query the scripts at a quarter, half and three quarters */
+        final String[] sample = new String[3];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = Script.getUnqualifiedName(
+                    order.get(order.size() * (i + 1) / 4));
+        }
+
+        /* The script most others depend on, like glib2 */
+        ScriptGraph graph = loader.getGraph();
+        int popular = 0;
+        for (int id = 0; id < graph.size(); id++) {
+            if (graph.getDependentCount(id) >
+                    graph.getDependentCount(popular)) {
+                popular = id;
+            }
+        }
+        final Set<String> changed = new TreeSet<String>();
+        changed.add(Script.getUnqualifiedName(graph.getName(popular)));
+
+        /* No packages have been built */
+        final PackageStore store = new PackageStore(new File(
+                cacheFile.getPath() + ".packages").getPath());
+        final String top = Script.getUnqualifiedName(
+                order.get(order.size() - 1));
+
+        System.out.println(label + ": " + order.size() + " scripts loaded, " +
+                threads + " threads");
+
+        time("cold load", new Task() {
+            void run() throws Exception {
+                new DynamicScriptLoader(names, search, LEVELS, null, threads);
+            }
+        });
+
+        new DynamicScriptLoader(names, search, LEVELS,
+                new ScriptCache(cacheFile), threads);
+        time("cached load", new Task() {
+            void run() throws Exception {
+                new DynamicScriptLoader(names, search, LEVELS,
+                        new ScriptCache(cacheFile), threads);
+            }
+        });
+
+        time("getBuildOrder()", new Task() {
+            void run() {
+                loader.getBuildOrder();
+            }
+        });
+
+        time("getBuildOrder(String)", new Task() {
+            void run() {
+                for (String unq : sample) {
+                    loader.getBuildOrder(unq);
+                }
+            }
+        });
+
+        time("getBuildLevels()", new Task() {
+            void run() {
+                loader.getBuildLevels();
+            }
+        });
+
+        time("dependsOn()", new Task() {
+            void run() {
+                for (String unq : sample) {
+                    loader.dependsOn(top, unq);
+                }
+            }
+        });
+
+        time("getDependencyChain()", new Task() {
+            void run() {
+                for (String unq : sample) {
+                    loader.getDependencyChain(top, unq);
+                }
+            }
+        });
+
+        time("getDependentOn() " + changed, new Task() {
+            void run() {
+                loader.getDependentOn(changed);
+            }
+        });
+
+        time("getDependentOn() with store", new Task() {
+            void run() {
+                loader.getDependentOn(changed, store);
+            }
+        });
+
+        time("getRevisedBuildOrder()", new Task() {
+            void run() {
+                loader.getRevisedBuildOrder(changed);
+            }
+        });
+
+        System.out.println();
+    }
+
+    /*
+     * Runs 'task' for at least MIN_TIME after warming up for as long, and
+     * prints the time and allocated bytes per run.
+     */
+    private static void time(String label, Task task) throws Exception {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < MIN_TIME) {
+            task.run();
+        }
+
+        long allocated = allocatedBytes();
+        int runs = 0;
+        start = System.nanoTime();
+        long elapsed = 0;
+        while (elapsed < MIN_TIME || runs < 3) {
+            task.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        }
+        long allocatedAfter = allocatedBytes();
+
+        StringBuilder line = new StringBuilder("  ");
+        line.append(label);
+        while (line.length() < 40) {
+            line.append(' ');
+        }
+        line.append(String.format("%12.1f us/op", elapsed / 1000.0 / runs));
+
+        if (allocated != -1 && allocatedAfter != -1) {
+            line.append(String.format("%14d bytes/op",
+                    (allocatedAfter - allocated) / runs));
+        }
+
+        System.out.println(line);
+    }
+
+    /*
+     * Returns the number of bytes allocated by this thread so far, or -1 if
+     * the VM does not keep track of this.
+     */
+    private static long allocatedBytes() {
+        try {
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+
+            return (Long)m.invoke(ManagementFactory.getThreadMXBean(),
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        } catch (LinkageError e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Writes a tree of 'size' scripts to 'dir', unless it is already there,
+     * and returns the names of the scripts nothing depends on.
+     */
+    private static Set<String> generate(File dir, int size)
+            throws IOException {
+        Random random = new Random(size);
+        boolean[] needed = new boolean[size];
+        String[][] requires = new String[size][];
+        String[][] recommends = new String[size][];
+        boolean[] groups = new boolean[size];
+
+        /* Dependencies always have a lower number, so there are no cycles */
+        for (int i = 0; i < size; i++) {
+            groups[i] = i > 20 && random.nextInt(20) == 0;
+
+            int count = groups[i] ? 5 + random.nextInt(16) :
+                    Math.min(i, geometric(random, 2.0));
+            requires[i] = pick(random, i, Math.min(i, count), needed);
+            recommends[i] = pick(random, i,
+                    Math.min(i, geometric(random, 1.0)), needed);
+        }
+
+        Set<String> roots = new TreeSet<String>();
+        for (int i = 0; i < size; i++) {
+            if (!needed[i]) {
+                roots.add(name(i));
+            }
+        }
+
+        File done = new File(dir, ".complete");
+        if (done.isFile()) {
+            return roots;
+        }
+
+        for (String repo : REPOS) {
+            new File(dir, repo).mkdirs();
+        }
+
+        for (int i = 0; i < size; i++) {
+            File f = new File(new File(dir, REPOS[i % REPOS.length]),
+                    name(i));
+            Writer w = new BufferedWriter(new FileWriter(f));
+            try {
+                w.write("#!/bin/bash\n\n");
+                w.write("# Generated by DependencyEngineBenchmark\n\n");
+                w.write("WGETLIST=\"http://example.org/" + name(i) +
+                        "-1.0.tar.xz\"\n");
+                w.write("MD5SUMLIST=\"" + Long.toHexString(random.nextLong())
+                        + Long.toHexString(random.nextLong()) + "\"\n");
+                w.write("REQUIRES=\"" + join(requires[i]) + "\"\n");
+                w.write("RECOMMENDS=\"" + join(recommends[i]) + "\"\n");
+                if (groups[i]) {
+                    w.write("TAGS=\"group\"\n");
+                }
+                w.write("\n###############################################\n");
+                w.write("installation() { # INSTALLING SYSTEM SOFTWARE #\n");
+                w.write("###############################################\n\n");
+                w.write("./configure --prefix=/usr\n");
+                w.write("make\n");
+                w.write("make DESTDIR=${FAKEROOT} install\n\n");
+                w.write("#################\n");
+                w.write("} # END OF FILE #\n");
+                w.write("#################\n\n");
+            } finally {
+                w.close();
+            }
+        }
+
+        done.createNewFile();
+
+        return roots;
+    }
+
+    /*
+     * Returns 'count' distinct names numbered below 'below', mostly low
+     * ones, and marks them as needed. Used only by generate().
+     */
+    private static String[] pick(Random random, int below, int count,
+            boolean[] needed) {
+        Set<Integer> picked = new TreeSet<Integer>();
+        while (picked.size() < count) {
+            int dep = (int)(below * Math.pow(random.nextDouble(), 2.5));
+            picked.add(Math.min(dep, below - 1));
+        }
+
+        String[] names = new String[picked.size()];
+        int n = 0;
+        for (int dep : picked) {
+            needed[dep] = true;
+            names[n++] = name(dep);
+        }
+
+        return names;
+    }
+
+    /* Returns a geometrically distributed number with the given mean */
+    private static int geometric(Random random, double mean) {
+        int n = 0;
+        while (random.nextDouble() < mean / (mean + 1)) {
+            n++;
+        }
+
+        return n;
+    }
+
+    private static String name(int i) {
+        return String.format("pkg%06d", i);
+    }
+
+    private static String join(String[] names) {
+        StringBuilder s = new StringBuilder();
+        for (String name : names) {
+            if (s.length() > 0) {
+                s.append(' ');
+            }
+            s.append(name);
+        }
+
+        return s.toString();
+    }
+}
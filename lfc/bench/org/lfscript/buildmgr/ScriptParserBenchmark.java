@@ -0,0 +1,195 @@
+/*
+ * - ScriptParserBenchmark.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Compares the single pass parser of <code>Script</code>, reading either
+ * whole files or only their headers, with the <code>String.split()</code>
+ * based parser it replaced, on every script in a repository directory.
+ * <p>
+ * Run from the <code>lfc</code> directory, after building the jar:
+ *<pre>
+ *javac -cp build/libLFClass.jar -d /tmp/bench \
+ *        bench/org/lfscript/buildmgr/ScriptParserBenchmark.java
+ *java -cp build/libLFClass.jar:/tmp/bench \
+ *        org.lfscript.buildmgr.ScriptParserBenchmark ../scripts/blfs-13994
+ *</pre>
+ * All parsers are first checked to produce the same dependencies for every
+ * script, after which each is timed over a number of rounds.
+ */
+public class ScriptParserBenchmark {
+    private static final List<String> LEVELS
+            = Arrays.asList("REQUIRES", "RECOMMENDS", "OPTIONAL");
+
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 50;
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ScriptParserBenchmark <repository>");
+            System.exit(1);
+        }
+
+        File repo = new File(args[0]);
+        String search = repo.getAbsoluteFile().getParent();
+
+        List<String> names = new ArrayList<String>();
+        for (String file : new TreeSet<String>(Arrays.asList(repo.list()))) {
+            if (Script.isUnqualifiedName(file)) {
+                names.add(repo.getName() + "/" + file);
+            }
+        }
+
+        /* Verify all parsers agree */
+        for (String qlf : names) {
+            Set<String> expected = legacyParse(new File(search, qlf));
+
+            for (boolean headerOnly : new boolean[] { false, true }) {
+                Set<String> actual = null;
+                try {
+                    actual = new Script(qlf, search, LEVELS, headerOnly)
+                            .getDependencies();
+                } catch (ScriptParserException e) {
+                    /* The legacy parser also rejected it */
+                }
+
+                if (expected == null ? actual != null :
+                        !expected.equals(actual)) {
+                    System.err.println("Mismatch for " + qlf + ": " +
+                            expected + " != " + actual);
+                }
+            }
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            runLegacy(names, search);
+            runCurrent(names, search, false);
+            runCurrent(names, search, true);
+        }
+
+        long legacy = 0;
+        long current = 0;
+        long header = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            runLegacy(names, search);
+            legacy += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runCurrent(names, search, false);
+            current += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runCurrent(names, search, true);
+            header += System.nanoTime() - start;
+        }
+
+        System.out.println(names.size() + " scripts, " + ROUNDS + " rounds");
+        System.out.println("legacy:  " + (legacy / ROUNDS / 1000) +
+                " us/round");
+        System.out.println("current: " + (current / ROUNDS / 1000) +
+                " us/round");
+        System.out.println("header:  " + (header / ROUNDS / 1000) +
+                " us/round");
+    }
+
+    private static void runLegacy(List<String> names, String search) {
+        for (String qlf : names) {
+            legacyParse(new File(search, qlf));
+        }
+    }
+
+    private static void runCurrent(List<String> names, String search,
+            boolean headerOnly) {
+        for (String qlf : names) {
+            try {
+                new Script(qlf, search, LEVELS, headerOnly);
+            } catch (ScriptParserException e) {
+                /* Counted like any other script */
+            } catch (ScriptNotFoundException e) {
+                throw new IllegalStateException(qlf);
+            }
+        }
+    }
+
+    /*
+     * The parser as it was before the single pass parser was introduced,
+     * reduced to the dependency levels. Returns null where the original
+     * would have thrown a ScriptParserException.
+     */
+    private static Set<String> legacyParse(File file) {
+        String contents = new String();
+        String line = null;
+
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(file));
+            while((line = r.readLine()) != null) {
+                contents += line + "\n";
+            }
+            r.close();
+        } catch (IOException e) {
+            return null;
+        }
+
+        Set<String> dependencies = new TreeSet<String>();
+
+        for (String depLevel : LEVELS) {
+            String[] occur = contents.split(depLevel + "=\"");
+            if (occur.length == 2) {
+                String requires = occur[1].split("\"")[0];
+
+                requires = requires.replace('\t', ' ');
+                requires = requires.replace('\n', ' ');
+                requires = requires.replace('\u000B', ' ');
+                requires = requires.replace('\f', ' ');
+                requires = requires.replace('\r', ' ');
+                while (requires.indexOf("  ") > -1) {
+                    requires = requires.replaceFirst("  ", " ");
+                }
+
+                for (String dep : requires.split(" ")) {
+                    if (!Script.isUnqualifiedName(dep)) {
+                        return null;
+                    }
+                    dependencies.add(dep);
+                }
+            } else if (occur.length > 2) {
+                return null;
+            }
+        }
+
+        return dependencies;
+    }
+}
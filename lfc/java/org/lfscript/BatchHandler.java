@@ -0,0 +1,137 @@
+/*
+ * - BatchHandler.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Runs a number of commands in a single VM. Commands are read from the file
+ * given as the only argument, or from standard input if there is none (or it
+ * is <code>-</code>). Every line holds one command, written the same way as
+ * the arguments to <code>lfclass</code>, for instance:
+ *<pre>
+ *dep all scripts packages excludes REQUIRES packs fsos
+ *dep rebuild scripts packages excludes REQUIRES packs fsos
+ *</pre>
+ * Empty lines and lines starting with <code>#</code> are ignored. Only
+ * <code>dep</code> and <code>factory2</code> commands can be run in a batch.
+ * All <code>dep</code> commands on the same script directory share the
+ * contents of scripts that have already been loaded.
+ * <p>
+ * After each command, the line <code>### lfclass exit STATUS</code> is
+ * written to both standard output and standard error, so that the output of
+ * individual commands can be told apart. A failing command does not stop
+ * the batch; the exit status of the batch is that of the last failing
+ * command, or <code>0</code> if all commands succeeded.
+ */
+class BatchHandler {
+    public static final String DELIMITER = "### lfclass exit ";
+
+    public static void main(String... args) {
+        InputStream in = System.in;
+
+        try {
+            if (args.length > 0 && !args[0].equals("-")) {
+                in = new FileInputStream(args[0]);
+            }
+
+            BufferedReader r = new BufferedReader(new InputStreamReader(in));
+
+            int batchStatus = 0;
+            String line = null;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                List<String> words = new ArrayList<String>();
+                StringTokenizer tokens = new StringTokenizer(line);
+                while (tokens.hasMoreTokens()) {
+                    words.add(tokens.nextToken());
+                }
+
+                int status = BatchHandler.run(
+                        words.toArray(new String[words.size()]));
+                if (status != 0) {
+                    batchStatus = status;
+                }
+
+                System.out.flush();
+                System.err.println(DELIMITER + status);
+                System.err.flush();
+                System.out.println(DELIMITER + status);
+                System.out.flush();
+            }
+
+            r.close();
+
+            if (batchStatus != 0) {
+                System.exit(batchStatus);
+            }
+        } catch (IOException e) {
+            System.err.println("[LFC] Unable to read commands: " +
+                    e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Runs a single command and returns its exit status. Used only by main().
+     */
+    private static int run(String[] command) {
+        String[] args = new String[command.length - 1];
+        System.arraycopy(command, 1, args, 0, args.length);
+
+        try {
+            if (command[0].equals("dep")) {
+                if (args.length < 4) {
+                    System.err.println("[LFC] Not enough arguments");
+                    return 1;
+                }
+
+                return DepHandler.run(args, System.out, System.err,
+                        DepHandler.getCache(args[1]));
+            } else if (command[0].equals("factory2")) {
+                org.lfscript.factory2.XMLFactory.main(args);
+                return 0;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[LFC] " + e);
+            return 1;
+        }
+
+        System.err.println("[LFC] '" + command[0] + "' can not be used in " +
+                "a batch");
+        return 1;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * - DepDaemon.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript;
+
+import org.lfscript.buildmgr.ScriptSearch;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.IOException;
+
+/**
+ * Answers <code>dep</code> queries from other processes, so that they do not
+ * need to start a VM of their own, and keeps the contents of all scripts it
+ * has loaded in memory between queries.
+ * <p>
+ * The daemon reads queries from a named pipe (FIFO), which is given as its
+ * first argument. Once it is listening, it creates the file given as its
+ * second argument, so that clients know when they can send queries. Every
+ * query is a single line of tab separated fields:
+ *<pre>
+ *replyPipe  workingDirectory  dep  arguments...
+ *</pre>
+ * The arguments are the same as those of <code>DepHandler</code>; relative
+ * paths are taken to be relative to <code>workingDirectory</code>. The
+ * answer is written to <code>replyPipe</code>, which the client must have
+ * created before sending the query. Every line of the answer starts with
+ * <code>1 </code> for normal output or <code>2 </code> for errors. The last
+ * line is <code>exit</code>, followed by the exit status of the query.
+ * <p>
+ * The query <code>stop</code> (in place of <code>dep</code>) makes the daemon
+ * exit, after answering it.
+ */
+class DepDaemon {
+    public static void main(String... args) {
+        if (args.length != 2) {
+            System.err.println("[LFC] Usage: daemon <request pipe> " +
+                    "<ready file>");
+            System.exit(1);
+        }
+
+        try {
+            DepDaemon.serve(new File(args[0]), new File(args[1]));
+        } catch (IOException e) {
+            System.err.println("[LFC] " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Reads queries from 'requests' until a 'stop' query is received, and
+     * creates 'ready' once the pipe is open. The daemon keeps the pipe open
+     * for writing as well, so that it does not end whenever a client is done
+     * with it.
+     */
+    private static void serve(final File requests, File ready)
+            throws IOException {
+        final OutputStream[] writer = new OutputStream[1];
+
+        /* Opening one end of a pipe waits until the other end is opened */
+        Thread opener = new Thread() {
+            public void run() {
+                try {
+                    writer[0] = new FileOutputStream(requests);
+                } catch (IOException e) {
+                    /* Opening it for reading fails as well */
+                }
+            }
+        };
+        opener.start();
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(requests)));
+        try {
+            try {
+                opener.join();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while opening " +
+                        requests);
+            }
+            if (writer[0] == null) {
+                throw new IOException("Unable to open " + requests);
+            }
+
+            new FileOutputStream(ready).close();
+
+            String line = null;
+            while ((line = r.readLine()) != null) {
+                if (!DepDaemon.answer(line.split("\t", -1))) {
+                    return;
+                }
+            }
+        } finally {
+            r.close();
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+    }
+
+    /*
+     * Answers a single query. Returns false if the daemon should stop. Used
+     * only by serve().
+     */
+    private static boolean answer(String[] fields) {
+        if (fields.length < 3) {
+            System.err.println("[LFC] Ignoring malformed query");
+            return true;
+        }
+
+        OutputStream reply = null;
+        try {
+            reply = new FileOutputStream(fields[0]);
+        } catch (IOException e) {
+            System.err.println("[LFC] Unable to reply to " + fields[0]);
+            return true;
+        }
+
+        LineStream outLines = new LineStream(reply, "1 ");
+        LineStream errLines = new LineStream(reply, "2 ");
+        PrintStream out = new PrintStream(outLines);
+        PrintStream err = new PrintStream(errLines);
+
+        int status = 1;
+        boolean stop = false;
+
+        String[] args = new String[fields.length - 3];
+        System.arraycopy(fields, 3, args, 0, args.length);
+
+        if (fields[2].equals("stop")) {
+            status = 0;
+            stop = true;
+        } else if (!fields[2].equals("dep")) {
+            err.println("[LFC] The daemon only answers 'dep' queries");
+        } else if (args.length < 4) {
+            err.println("[LFC] Not enough arguments");
+        } else {
+
+            /* The search directories and exclude file */
+            for (int i = 1; i < 4; i++) {
+                args[i] = DepDaemon.absolute(args[i], fields[1]);
+            }
+
+            try {
+                status = DepHandler.run(args, out, err,
+                        DepHandler.getCache(args[1]));
+            } catch (RuntimeException e) {
+                err.println("[LFC] " + e);
+            }
+        }
+
+        try {
+            out.flush();
+            err.flush();
+            outLines.close();
+            errLines.close();
+            reply.write(("exit " + status + "\n").getBytes());
+            reply.close();
+        } catch (IOException e) {
+            /* The client has gone away */
+        }
+
+        return !stop;
+    }
+
+    /*
+     * Makes every directory in the search path 'path' absolute, relative to
+     * 'cwd'. Used only by answer().
+     */
+    private static String absolute(String path, String cwd) {
+        StringBuilder s = new StringBuilder();
+
+        for (String root : ScriptSearch.getRoots(path)) {
+            if (s.length() > 0) {
+                s.append(File.pathSeparatorChar);
+            }
+
+            if ((new File(root)).isAbsolute()) {
+                s.append(root);
+            } else {
+                s.append((new File(cwd, root)).getPath());
+            }
+        }
+
+        return s.toString();
+    }
+
+    /*
+     * Writes every line written to it to another stream, prefixed with a
+     * fixed string. Lines are only passed on when they are complete, so that
+     * lines from several LineStreams writing to the same stream are never
+     * mixed up.
+     */
+    private static class LineStream extends OutputStream {
+        private final OutputStream target;
+        private final byte[] prefix;
+        private final ByteArrayOutputStream line;
+
+        private LineStream(OutputStream target, String prefix) {
+            this.target = target;
+            this.prefix = prefix.getBytes();
+            this.line = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.line.write(b);
+
+            if (b == '\n') {
+                this.writeLine();
+            }
+        }
+
+        /* Passes on an incomplete last line, ending it */
+        @Override
+        public void close() throws IOException {
+            if (this.line.size() > 0) {
+                this.line.write('\n');
+                this.writeLine();
+            }
+        }
+
+        private void writeLine() throws IOException {
+            synchronized (this.target) {
+                this.target.write(this.prefix);
+                this.target.write(this.line.toByteArray());
+            }
+            this.line.reset();
+        }
+    }
+}
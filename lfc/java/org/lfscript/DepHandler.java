@@ -31,7 +31,12 @@ import java.util.ArrayList;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
 import java.io.File;
+import java.io.PrintStream;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -41,7 +46,39 @@ import java.io.FileReader;
  * LFScript's revised dependency handler.
  */
 class DepHandler {
+
+    /* Caches kept in memory between queries, by script directory */
+    private static final Map<String, ScriptCache> caches
+            = new HashMap<String, ScriptCache>();
+
+    /*
+     * Loaders kept up to date between queries, by selection. The least
+     * recently used one comes first, and is dropped when there are more
+     * than MAX_LOADERS.
+     */
+    private static final Map<String, ResidentLoader> loaders
+            = new LinkedHashMap<String, ResidentLoader>();
+    private static final int MAX_LOADERS = 8;
+
     public static void main(String... args) {
+        int status = DepHandler.run(args, System.out, System.err, null);
+
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a query with the same arguments as {@link #main(String...)},
+     * writing the results to <code>out</code> and any problems to
+     * <code>err</code>. Scripts are loaded through <code>cache</code>, or
+     * through the default cache for the script directory if it is
+     * <code>null</code>.
+     *
+     * @return the exit status of the query.
+     */
+    static int run(String[] args, PrintStream out, PrintStream err,
+            ScriptCache cache) {
         String runType = args[0];
         String scriptSearch = args[1];
         String packSearch = args[2];
@@ -49,7 +86,7 @@ class DepHandler {
 
         final List<String> depLevels = new ArrayList<String>();
         Set<String> build = new TreeSet<String>();
-        DynamicScriptLoader loader = null;
+        List<String> named = new ArrayList<String>();
 
         boolean depLevelsDone = false;
         for (int i = 4; i < args.length; i++) {
@@ -60,77 +97,418 @@ class DepHandler {
 
             if (depLevelsDone) {
                 build.add(args[i]);
+                named.add(args[i]);
             } else {
                 depLevels.add(args[i].toUpperCase());
             }
         }
 
+        /*
+         * For 'profiles', every name is of the form profile=name1,name2,...
+         * All profiles are loaded at once, as a single selection.
+         */
+        Map<String, Set<String>> profiles = new TreeMap<String, Set<String>>();
+        if (runType.equals("profiles")) {
+            build.clear();
+            for (String profile : named) {
+                int eq = profile.indexOf('=');
+                if (eq < 1) {
+                    err.println("[LFC] Profiles should be given as " +
+                            "profile=name1,name2,...: " + profile);
+                    return 1;
+                }
+
+                Set<String> targets = new TreeSet<String>();
+                for (String name : profile.substring(eq + 1).split(",")) {
+                    if (name.length() > 0) {
+                        targets.add(name);
+                    }
+                }
+
+                profiles.put(profile.substring(0, eq), targets);
+                build.addAll(targets);
+            }
+        }
+
+        /* A manifest covers every script, regardless of the selection */
+        if (runType.equals("manifest")) {
+            try {
+                ScriptManifest.create(scriptSearch).write(out);
+            } catch (IOException e) {
+                err.println("[LFC] Unable to read scripts: " + e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+
+        /*
+         * For 'impact', the exclude file is the earlier snapshot to compare
+         * the scripts with: a manifest or a copy of the script directory.
+         */
+        Set<String> excludes = new HashSet<String>();
+        if (!runType.equals("impact")) {
+            excludes = DepHandler.readExcludes(excludeFile);
+        }
+
+        /*
+         * Answer from the plan resolved earlier, if nothing has changed.
+         * 'nextkeys' is the same as 'next', but also prints the key of every
+         * package, like 'keys' does.
+         */
+        File planFile = BuildPlan.getDefaultFile(scriptSearch);
+        boolean withKeys = runType.equals("nextkeys");
+        if (runType.equals("next") || withKeys) {
+            BuildPlan plan = BuildPlan.load(planFile, scriptSearch,
+                    packSearch, depLevels, build, excludes);
+
+            if (plan != null) {
+                DepHandler.printNext(plan, packSearch, withKeys, out);
+                return 0;
+            }
+        }
+
+        DynamicScriptLoader loader = DepHandler.load(build, scriptSearch,
+                depLevels, cache, err);
+        if (loader == null) {
+            return 1;
+        }
+
+        List<String> buildOrder = null;
+        if (excludes.isEmpty()) {
+            buildOrder = loader.getBuildOrder();
+        } else {
+            buildOrder = loader.getRevisedBuildOrder(excludes);
+        }
+
+        if (runType.equals("impact")) {
+            Set<String> changed = null;
+            try {
+                changed = ScriptManifest.create(scriptSearch).getChanged(
+                        ScriptManifest.load(new File(excludeFile)));
+            } catch (IOException e) {
+                err.println("[LFC] Unable to compare scripts: " +
+                        e.getMessage());
+                return 1;
+            }
+
+            /* Only changes to the selected scripts matter */
+            Set<String> selected = new HashSet<String>();
+            for (String fqn : buildOrder) {
+                if (changed.contains(fqn)) {
+                    selected.add(fqn);
+                }
+            }
+
+            Set<String> toRebuild = loader.getDependentOn(selected,
+                    new PackageStore(packSearch));
+            for (String fqn : buildOrder) {
+                if (toRebuild.contains(Script.getUnqualifiedName(fqn))) {
+                    out.println(fqn);
+                }
+            }
+        } else if (runType.equals("profiles")) {
+            Set<String> included = new HashSet<String>(buildOrder);
+
+            /* One line per package, preceded by the name of the profile */
+            Map<String, List<String>> orders = loader.getBuildOrders(
+                    profiles);
+            for (String profile : orders.keySet()) {
+                for (String fqn : orders.get(profile)) {
+                    if (included.contains(fqn)) {
+                        out.println(profile + " " + fqn);
+                    }
+                }
+            }
+        } else if (runType.equals("why")) {
+
+            /* The last name is the one to explain */
+            if (named.isEmpty()) {
+                err.println("[LFC] No name given to explain");
+                return 1;
+            }
+            String dep = named.get(named.size() - 1);
+
+            List<String> roots = loader.getRootsPullingIn(dep);
+            if (roots.isEmpty()) {
+                err.println("[LFC] '" + dep + "' is not pulled in by any " +
+                        "other selected script");
+                return 1;
+            }
+
+            for (String root : roots) {
+                DepHandler.printChain(loader.getDependencyChain(root, dep),
+                        out);
+            }
+        } else if (runType.equals("path")) {
+            if (named.size() != 2) {
+                err.println("[LFC] Exactly two names should be given");
+                return 1;
+            }
+
+            List<String> chain = loader.getDependencyChain(named.get(0),
+                    named.get(1));
+            if (chain == null) {
+                err.println("[LFC] '" + named.get(0) + "' does not depend " +
+                        "on '" + named.get(1) + "'");
+                return 1;
+            }
+
+            DepHandler.printChain(chain, out);
+        } else if (runType.equals("rebuild")) {
+            /* Only cascade past packages whose interface has changed */
+            Set<String> toRebuild = loader.getDependentOn(excludes,
+                    new PackageStore(packSearch));
+            for (String name : toRebuild) {
+                out.println(name);
+            }
+        } else if (runType.equals("all")) {
+            for (String fqn : buildOrder) {
+                out.println(fqn);
+            }
+        } else if (runType.equals("levels")) {
+            Set<String> included = new HashSet<String>(buildOrder);
+
+            /*
+             * One line per level, omitting levels without included names.
+             * Names which hold up the most other builds come first.
+             */
+            BuildDurations durations = new BuildDurations(packSearch);
+            for (List<String> level : loader.getBuildLevels(durations)) {
+                StringBuilder line = new StringBuilder();
+                for (String fqn : level) {
+                    if (included.contains(fqn)) {
+                        if (line.length() > 0) {
+                            line.append(' ');
+                        }
+                        line.append(fqn);
+                    }
+                }
+
+                if (line.length() > 0) {
+                    out.println(line);
+                }
+            }
+        } else if (runType.equals("keys") || runType.equals("stale") ||
+                runType.equals("next") || withKeys) {
+            PackageKeys keys = null;
+            try {
+                keys = new PackageKeys(loader);
+            } catch (IOException e) {
+                err.println("[LFC] Unable to read scripts: " + e.getMessage());
+                return 1;
+            }
+
+            if (runType.equals("keys")) {
+                for (String fqn : buildOrder) {
+                    out.println(fqn + " " + keys.getKey(fqn));
+                }
+            } else if (runType.equals("stale")) {
+
+                /* Packages built from different inputs than the current */
+                PackageStore store = new PackageStore(packSearch);
+                for (String fqn : buildOrder) {
+                    if (store.isBuilt(fqn) &&
+                            !store.isCurrent(fqn, keys.getKey(fqn))) {
+                        out.println(fqn);
+                    }
+                }
+            } else {
+                BuildPlan plan = BuildPlan.create(planFile, loader, keys,
+                        buildOrder, packSearch, depLevels, build, excludes);
+
+                DepHandler.printNext(plan, packSearch, withKeys, out);
+            }
+        } else {
+            err.println(
+                "[LFC] First argument should be 'all', 'impact', 'keys', " +
+                "'levels', 'manifest', 'next', 'nextkeys', 'path', " +
+                "'profiles', 'rebuild', 'stale' or 'why'"
+            );
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /*
+     * Prints a chain of dependencies on a single line, for instance
+     * 'xfce -> gtk+2 -> glib2'.
+     */
+    private static void printChain(List<String> chain, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (String fqn : chain) {
+            if (line.length() > 0) {
+                line.append(" -> ");
+            }
+            line.append(fqn);
+        }
+
+        out.println(line);
+    }
+
+    /*
+     * Prints the next package in 'plan' that has not been built yet, preceded
+     * by all of its dependencies. Prints nothing if everything has been built.
+     * If 'withKeys' is set, every name is followed by the package key.
+     */
+    private static void printNext(BuildPlan plan, String packSearch,
+            boolean withKeys, PrintStream out) {
+        PackageStore store = new PackageStore(packSearch);
+        String next = plan.next(store);
+
+        if (next != null) {
+            for (String fqn : plan.getBuildOrder(next)) {
+                String key = plan.getKey(fqn);
+
+                /*
+                 * A package that need not be rebuilt, as the interface of its
+                 * dependencies did not change, keeps the key it was built
+                 * from, so that it is not taken for being out of date
+                 */
+                if (!fqn.equals(next) && store.getKey(fqn) != null &&
+                        plan.isCurrent(fqn, store)) {
+                    key = store.getKey(fqn);
+                }
+
+                out.println(withKeys ? fqn + " " + key : fqn);
+            }
+        }
+    }
+
+    /**
+     * Returns the cache for scripts in the <code>scriptSearch</code>
+     * directory. The same cache is returned for every call with the same
+     * directory, so that it is only read from disk once when running more
+     * than one query in a VM.
+     */
+    static synchronized ScriptCache getCache(String scriptSearch) {
+        String key = (new File(scriptSearch)).getAbsolutePath();
+
+        ScriptCache cache = DepHandler.caches.get(key);
+        if (cache == null) {
+            cache = new ScriptCache(ScriptCache.getDefaultFile(scriptSearch));
+            DepHandler.caches.put(key, cache);
+        }
+
+        return cache;
+    }
+
+    /*
+     * Loads the scripts named in 'build' and all of their dependencies. If
+     * 'cache' is not null, the queries are run from a long running process
+     * and the loader is kept for the next query on the same selection. If
+     * this fails, the problems are printed to 'err' and null is returned.
+     * Also used by ExecHandler.
+     */
+    static DynamicScriptLoader load(Set<String> build, String scriptSearch,
+            List<String> depLevels, ScriptCache cache, PrintStream err) {
+        int threads = DepHandler.getProcessorCount();
+
         try {
-            loader = new DynamicScriptLoader(build, scriptSearch, depLevels);
+            if (cache == null) {
+                return new DynamicScriptLoader(build, scriptSearch, depLevels,
+                        new ScriptCache(ScriptCache.getDefaultFile(
+                        scriptSearch)), threads);
+            }
+
+            String key = (new File(scriptSearch)).getAbsolutePath() + "\t" +
+                    depLevels + "\t" + new TreeSet<String>(build);
+
+            ResidentLoader resident = null;
+            synchronized (DepHandler.loaders) {
+                resident = DepHandler.loaders.remove(key);
+                if (resident == null) {
+                    resident = new ResidentLoader(build, scriptSearch,
+                            depLevels, cache, threads);
+                }
+                DepHandler.loaders.put(key, resident);
+
+                if (DepHandler.loaders.size() > MAX_LOADERS) {
+                    DepHandler.loaders.remove(
+                            DepHandler.loaders.keySet().iterator().next());
+                }
+            }
+
+            return resident.getLoader();
         } catch (IllegalArgumentException iae) {
             ScriptLoaderException sle = (ScriptLoaderException)iae.getCause();
 
-            System.err.println(
+            err.println(
                     "\nProplems with your selection have been detected:");
 
             /* Print conflicting selections */
             Set<String> keys = sle.getMultipleImplementations().keySet();
             for (String unq : keys) {
-                System.err.println("* Conflicting selections of '" + unq +
+                err.println("* Conflicting selections of '" + unq +
                         "' have been made: " +
                         sle.getMultipleImplementations().get(unq));
             }
 
             /* Print invalid names */
             for (String invalid : sle.getNonValidNames()) {
-                System.err.println("* The specified name '" + invalid + "' " +
+                err.println("* The specified name '" + invalid + "' " +
                         "is not a valid script identifier.");
             }
 
-            System.err.println("");
+            err.println("");
 
-            System.exit(1);
+            return null;
         } catch (ScriptLoaderException sle) {
 
-            System.err.println(
+            err.println(
                     "\nThere was a problem while loading selected scripts:");
 
             /* Print conflicting selections */
             Set<String> keys = sle.getMultipleImplementations().keySet();
             for (String unq : keys) {
-                System.err.println("* Multiple scripts have been found for '" +
+                err.println("* Multiple scripts have been found for '" +
                         unq + "': " +
                         sle.getMultipleImplementations().get(unq));
             }
 
             /* Print not found names */
             for (String invalid : sle.getNotFoundNames()) {
-                System.err.println("* No script was found for '" + invalid +
+                err.println("* No script was found for '" + invalid +
                         "'.");
             }
 
             /* Print circular */
             for (String[] circ : sle.getCircularDependencies()) {
-                System.err.print("* A chain of circular dependencies has " +
+                err.print("* A chain of circular dependencies has " +
                         "been found: ");
                 for (String dep : circ) {
-                    System.err.print(dep + " -> ");
+                    err.print(dep + " -> ");
+                }
+                err.println(circ[0]);
+
+                for (Set<String> group : sle.getCircularGroups()) {
+                    if (group.contains(circ[0]) &&
+                            group.size() > circ.length) {
+                        err.println("  It is part of a group of " +
+                                "scripts which depend on each other: " +
+                                group);
+                    }
                 }
-                System.err.println(circ[0]);
             }
 
             /* Print parser errors */
             for (ScriptParserException spe : sle.getParserExceptions()) {
-                System.err.println("* Parsing of script '" +
+                err.println("* Parsing of script '" +
                         spe.getScriptName() + "' has failed: " +
                         spe.getMessage());
             }
 
-            System.err.println("");
+            err.println("");
 
-            System.exit(1);
+            return null;
         }
+    }
 
+    /*
+     * Returns the names in 'excludeFile', one per line, or an empty Set if
+     * it can not be read. Also used by ExecHandler.
+     */
+    static Set<String> readExcludes(String excludeFile) {
         Set<String> excludes = new HashSet<String>();
         try {
             FileReader fileReader = new FileReader(excludeFile);
@@ -148,53 +526,34 @@ class DepHandler {
             /* Ignore the exception */
         }
 
-        List<String> buildOrder = null;
-        if (excludes.isEmpty()) {
-            buildOrder = loader.getBuildOrder();
-        } else {
-            buildOrder = loader.getRevisedBuildOrder(excludes);
-        }
-
-        if (runType.equals("rebuild")) {
-            Set<String> toRebuild = loader.getDependentOn(excludes);
-            for (String name : toRebuild) {
-                System.out.println(name);
-            }
-        } else if (runType.equals("all")) {
-            for (String fqn : buildOrder) {
-                System.out.println(fqn);
-            }
-        } else if (runType.equals("next")) {
-            String next = null;
-            for (String fqn : buildOrder) {
-                Script s = loader.getScript(Script.getUnqualifiedName(fqn));
-                File f1 = new File(packSearch, fqn + ".txz");
-                File f2 = new File(packSearch, fqn + ".tgz");
-                if (f1.exists()) {
-                    continue;
-                } else if (f2.exists()) {
-                    continue;
-                } else if (s.isGroup()) {
-                    continue;
-                }
-
-                next = Script.getUnqualifiedName(fqn);
-                break;
-            }
+        return excludes;
+    }
 
-            if (next != null) {
-                List<String> order = loader.getBuildOrder(next);
-                for (String fqn : order) {
-                    System.out.println(fqn);
+    /*
+     * Returns the number of processors of this machine, as listed in
+     * /proc/cpuinfo, or 1 if it can not be read. The class library of the
+     * VM LFClass runs on has no Runtime.availableProcessors(). Also used by
+     * ExecHandler.
+     */
+    static int getProcessorCount() {
+        int count = 0;
+        try {
+            BufferedReader r = new BufferedReader(
+                    new FileReader("/proc/cpuinfo"));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("processor")) {
+                        count++;
+                    }
                 }
+            } finally {
+                r.close();
             }
-
-        } else {
-            System.err.println(
-                "[LFC] First argument should be 'all', 'next' or 'rebuild'"
-            );
-            System.exit(1);
+        } catch (IOException e) {
+            /* Assume a single processor */
         }
+
+        return Math.max(count, 1);
     }
 }
-
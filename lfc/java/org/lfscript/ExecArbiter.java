@@ -35,8 +35,14 @@ class ExecArbiter {
             nArgs[i - 1] = args[i];
         }
 
-        if (args[0].equals("dep")) {
+        if (args[0].equals("batch")) {
+            BatchHandler.main(nArgs);
+        } else if (args[0].equals("dep")) {
             DepHandler.main(nArgs);
+        } else if (args[0].equals("daemon")) {
+            DepDaemon.main(nArgs);
+        } else if (args[0].equals("exec")) {
+            ExecHandler.main(nArgs);
         } else if (args[0].equals("factory2")) {
             org.lfscript.factory2.XMLFactory.main(nArgs);
         } else if (args[0].equals("iconfig")) {
@@ -47,8 +53,8 @@ class ExecArbiter {
     }
 
     private static void invalidArg() {
-        System.err.println("What do you want me to do? [dep | factory | " +
-                "factory2 | iconfig]");
+        System.err.println("What do you want me to do? [batch | daemon | " +
+                "dep | exec | factory | factory2 | iconfig]");
         System.exit(1);
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * - ExecHandler.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript;
+
+import org.lfscript.buildmgr.*;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.IOException;
+
+/**
+ * The entry point for building a selection of scripts in parallel. It takes
+ * the following arguments:
+ *<pre>
+ *slots command scriptSearch packSearch excludeFile LEVELS... packs names...
+ *</pre>
+ * All arguments from <code>scriptSearch</code> onwards are the same as for
+ * <code>DepHandler</code>. Up to <code>slots</code> (or one per processor,
+ * if this is <code>0</code>) builds run at the same time. A build consists
+ * of running <code>command</code> with <code>/bin/sh</code>, with the
+ * qualified name of the script as its first argument. Packages which have
+ * already been built from their current inputs (see <code>PackageKeys</code>)
+ * are not built again.
+ * <p>
+ * <code>slots</code> may be followed by the number of processors and the
+ * amount of memory the running builds may use together, for instance
+ * <code>0,16,14G</code>. The number of processors defaults to the number of
+ * slots, and memory is not limited unless it is given. How much of these a
+ * build uses is set by the <code>cpu:N</code> and <code>mem:SIZE</code>
+ * tags of its script.
+ */
+class ExecHandler {
+    public static void main(String... args) {
+        if (args.length < 5) {
+            System.err.println("[LFC] Usage: exec <slots>[,<cpus>" +
+                    "[,<memory>]] <command> <scripts> <packages> <excludes> " +
+                    "LEVELS... packs NAMES...");
+            System.exit(1);
+        }
+
+        String[] limits = args[0].split(",", -1);
+
+        int slots = 0;
+        try {
+            slots = Integer.parseInt(limits[0]);
+        } catch (NumberFormatException e) {
+            slots = -1;
+        }
+        if (slots < 0 || limits.length > 3) {
+            System.err.println("[LFC] Invalid number of slots: " + args[0]);
+            System.exit(1);
+        } else if (slots == 0) {
+            slots = DepHandler.getProcessorCount();
+        }
+
+        int cpus = slots;
+        if (limits.length > 1) {
+            try {
+                cpus = Integer.parseInt(limits[1]);
+            } catch (NumberFormatException e) {
+                cpus = -1;
+            }
+            if (cpus < 0) {
+                System.err.println("[LFC] Invalid number of processors: " +
+                        limits[1]);
+                System.exit(1);
+            } else if (cpus == 0) {
+                cpus = DepHandler.getProcessorCount();
+            }
+        }
+
+        long memory = 0;
+        if (limits.length > 2) {
+            memory = Script.parseMemory(limits[2]);
+            if (memory < 0) {
+                System.err.println("[LFC] Invalid amount of memory: " +
+                        limits[2]);
+                System.exit(1);
+            }
+        }
+
+        String command = args[1];
+        String scriptSearch = args[2];
+        String packSearch = args[3];
+        String excludeFile = args[4];
+
+        List<String> depLevels = new ArrayList<String>();
+        Set<String> build = new TreeSet<String>();
+
+        boolean depLevelsDone = false;
+        for (int i = 5; i < args.length; i++) {
+            if (!depLevelsDone && args[i].equals("packs")) {
+                depLevelsDone = true;
+                continue;
+            }
+
+            if (depLevelsDone) {
+                build.add(args[i]);
+            } else {
+                depLevels.add(args[i].toUpperCase());
+            }
+        }
+
+        DynamicScriptLoader loader = DepHandler.load(build, scriptSearch,
+                depLevels, null, System.err);
+        if (loader == null) {
+            System.exit(1);
+        }
+        Set<String> excludes = DepHandler.readExcludes(excludeFile);
+
+        /* Packages that have been built from the current inputs are done */
+        PackageKeys keys = null;
+        try {
+            keys = new PackageKeys(loader);
+        } catch (IOException e) {
+            System.err.println("[LFC] Unable to read scripts: " +
+                    e.getMessage());
+            System.exit(1);
+        }
+
+        PackageStore store = new PackageStore(packSearch);
+        List<String> selection = new ArrayList<String>();
+        for (String qlf : loader.getRevisedBuildOrder(excludes)) {
+            if (!store.isCurrent(qlf, keys.getKey(qlf))) {
+                selection.add(qlf);
+            }
+        }
+
+        BuildExecutor executor = new BuildExecutor(loader,
+                new String[] { "/bin/sh", "-c", command + " \"$1\"", "sh" },
+                slots, cpus, memory, System.out);
+
+        List<String> failed = null;
+        try {
+            failed = executor.run(selection,
+                    new BuildDurations(packSearch));
+        } catch (InterruptedException e) {
+            System.err.println("[LFC] Interrupted while building");
+            System.exit(1);
+        }
+
+        if (!failed.isEmpty()) {
+            System.err.println("\nThe following packages were not built:");
+            for (String qlf : failed) {
+                System.err.println("* " + qlf);
+            }
+            System.err.println("");
+
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * - BuildDurations.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * Provides the time it took to build packages in the past.
+ * <p>
+ * Whenever LFScript creates a package, it writes the number of seconds it
+ * took to build it to a file next to the package archive, named after the
+ * package with <code>.time</code> appended. For the script
+ * <code>blfs-13994/firefox</code> that is
+ * <code>blfs-13994/firefox.time</code> in the package directory.
+ * <p>
+ * Packages which have never been built (or were built by a version of
+ * LFScript which did not record this) have no known duration.
+ */
+public class BuildDurations {
+    private final String packSearch;
+    private final Map<String, Long> durations;
+
+    /**
+     * Constructs a new <code>BuildDurations</code> for packages in the
+     * <code>packSearch</code> directory.
+     */
+    public BuildDurations(String packSearch) {
+        this.packSearch = packSearch;
+        this.durations = new HashMap<String, Long>();
+    }
+
+    /**
+     * Returns the number of seconds it took to build the package for the
+     * script with the qualified name <code>qlf</code>, or <code>-1</code> if
+     * this is not known.
+     */
+    public long getDuration(String qlf) {
+        Long duration = this.durations.get(qlf);
+
+        if (duration == null) {
+            duration = readDuration(new File(this.packSearch, qlf + ".time"));
+            this.durations.put(qlf, duration);
+        }
+
+        return duration;
+    }
+
+    /*
+     * Returns the number of seconds in 'file', or -1 if it does not exist or
+     * contains anything else. Used only by getDuration().
+     */
+    private static long readDuration(File file) {
+        if (!file.isFile()) {
+            return -1;
+        }
+
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(file));
+            try {
+                String line = r.readLine();
+                long duration = line == null ? -1 : Long.parseLong(line.trim());
+
+                return duration < 0 ? -1 : duration;
+            } finally {
+                r.close();
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * - BuildExecutor.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
+import java.io.PrintStream;
+import java.io.IOException;
+
+/**
+ * Executes a command for every <code>Script</code> loaded by a
+ * <code>DynamicScriptLoader</code>, running up to a fixed number of commands
+ * at the same time.
+ * <p>
+ * The command for a <code>Script</code> is started as soon as the commands
+ * for all of its dependencies have finished successfully. If more
+ * <code>Script</code>s are ready than there are free slots, those with the
+ * longest critical path are started first (see
+ * {@link DynamicScriptLoader#getBuildLevels(BuildDurations)}). Groups do not
+ * build anything, so no command is executed for them.
+ * <p>
+ * Besides the number of slots, the number of processors and the amount of
+ * memory used by the running commands can be limited. A
+ * <code>Script</code> uses as much of these as its <code>cpu:N</code> and
+ * <code>mem:SIZE</code> tags say (see {@link Script#getCpus()} and
+ * {@link Script#getMemory()}). A <code>Script</code> which does not fit in
+ * what is left waits, while smaller ones that are ready after it may still
+ * be started. A <code>Script</code> needing more than the limits allow is
+ * started once nothing else is running, so that it is still built.
+ * <p>
+ * Starting smaller <code>Script</code>s must not keep the first one waiting
+ * forever. Going by the durations of earlier builds, the time at which
+ * enough is free for it is worked out, and a smaller <code>Script</code>
+ * known to finish before then is always started. Other smaller
+ * <code>Script</code>s are started in its place no more often than there
+ * are slots; after that, only those known to finish in time are started
+ * until it has been started itself.
+ * <p>
+ * If a command fails, the <code>Script</code>s depending on it are skipped.
+ * All other <code>Script</code>s are still built.
+ * <p>
+ * The progress of the build, and all output of the commands (prefixed with
+ * the name of the <code>Script</code>), is written to a
+ * <code>PrintStream</code>.
+ */
+public class BuildExecutor {
+    private final DynamicScriptLoader loader;
+    private final ScriptGraph graph;
+    private final String[] command;
+    private final int slots;
+    private final int cpus;
+    private final long memory;
+    private final PrintStream out;
+
+    /* IDs of finished commands, and their exit codes; guarded by 'this' */
+    private final LinkedList<int[]> finished;
+
+    /*
+     * Running commands by ID, and whether run() has been interrupted;
+     * guarded by 'this'
+     */
+    private final Map<Integer, Process> processes;
+    private boolean stopping;
+
+    /**
+     * Constructs a new <code>BuildExecutor</code> for the scripts loaded by
+     * <code>loader</code>. The command that is run for a script consists of
+     * <code>command</code>, followed by the qualified name of the script.
+     *
+     * @throws IllegalArgumentException if <code>slots</code> is less than
+     *         one or <code>command</code> is empty.
+     */
+    public BuildExecutor(DynamicScriptLoader loader, String[] command,
+            int slots, PrintStream out) {
+        this(loader, command, slots, slots, 0, out);
+    }
+
+    /**
+     * Constructs a new <code>BuildExecutor</code>, like
+     * {@link #BuildExecutor(DynamicScriptLoader, String[], int, PrintStream)},
+     * which also keeps the running commands within <code>cpus</code>
+     * processors and <code>memory</code> MiB of memory. If
+     * <code>memory</code> is <code>0</code>, memory is not limited.
+     *
+     * @throws IllegalArgumentException if <code>slots</code> or
+     *         <code>cpus</code> is less than one, <code>memory</code> is
+     *         negative or <code>command</code> is empty.
+     */
+    public BuildExecutor(DynamicScriptLoader loader, String[] command,
+            int slots, int cpus, long memory, PrintStream out) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("At least one slot is needed");
+        }
+        if (cpus < 1) {
+            throw new IllegalArgumentException(
+                    "At least one processor is needed");
+        }
+        if (memory < 0) {
+            throw new IllegalArgumentException("Invalid amount of memory");
+        }
+        if (command.length == 0) {
+            throw new IllegalArgumentException("No command specified");
+        }
+
+        this.loader = loader;
+        this.graph = loader.getGraph();
+        this.command = command.clone();
+        this.slots = slots;
+        this.cpus = cpus;
+        this.memory = memory;
+        this.out = out;
+        this.finished = new LinkedList<int[]>();
+        this.processes = new HashMap<Integer, Process>();
+    }
+
+    /**
+     * Runs the command for every script in <code>selection</code>, a
+     * <code>List</code> of qualified names as returned by
+     * {@link DynamicScriptLoader#getRevisedBuildOrder(Set)}. Dependencies
+     * which are not in <code>selection</code> are considered to be built
+     * already.
+     * <p>
+     * This method returns when no more commands can be started and all
+     * running commands have finished. Groups are passed as soon as their
+     * dependencies are done, without taking up a slot.
+     * <p>
+     * If the calling thread is interrupted while waiting for a command, all
+     * running commands are destroyed and <code>InterruptedException</code>
+     * is thrown.
+     *
+     * @return the qualified names of all scripts which have failed or were
+     *         skipped, in building order.
+     */
+    public List<String> run(List<String> selection,
+            BuildDurations durations) throws InterruptedException {
+        int size = this.graph.size();
+        final long[] paths = this.loader.getCriticalPaths(durations);
+
+        synchronized (this) {
+            this.stopping = false;
+        }
+
+        boolean[] selected = new boolean[size];
+        for (String qlf : selection) {
+            selected[this.graph.getId(Script.getUnqualifiedName(qlf))] = true;
+        }
+
+        /* Number of selected dependencies that have not yet been built */
+        int[] waiting = new int[size];
+        boolean[] failed = new boolean[size];
+
+        TreeSet<Integer> ready = new TreeSet<Integer>(
+                new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (paths[a] != paths[b]) {
+                    return paths[a] > paths[b] ? -1 : 1;
+                }
+
+                return a.compareTo(b);
+            }
+        });
+
+        int remaining = 0;
+        for (int id = 0; id < size; id++) {
+            if (!selected[id]) {
+                continue;
+            }
+
+            remaining++;
+            for (int i = 0; i < this.graph.getDependencyCount(id); i++) {
+                if (selected[this.graph.getDependency(id, i)]) {
+                    waiting[id]++;
+                }
+            }
+
+            if (waiting[id] == 0) {
+                ready.add(id);
+            }
+        }
+
+        long[] started = new long[size];
+        int running = 0;
+
+        /* Groups that have been passed, but are not yet processed below */
+        int passedGroups = 0;
+
+        /* Commands running, and the processors and memory they use */
+        List<Integer> building = new ArrayList<Integer>();
+        int usedCpus = 0;
+        long usedMemory = 0;
+
+        /* The first script that did not fit, and how often it was passed */
+        int waitingFor = -1;
+        int passed = 0;
+
+        while (remaining > 0) {
+            long now = System.currentTimeMillis();
+
+            /* When the first script that does not fit can be started */
+            long reserved = 0;
+            boolean blocked = false;
+
+            /*
+             * Removed from 'ready' afterwards, as the TreeSet of the Avian
+             * class library can not remove through an Iterator
+             */
+            List<Integer> taken = new ArrayList<Integer>();
+
+            Iterator<Integer> candidates = ready.iterator();
+            while (candidates.hasNext()) {
+                int id = candidates.next();
+
+                String qlf = this.graph.getName(id);
+                Script script = this.loader.getScript(
+                        Script.getUnqualifiedName(qlf));
+                if (script.isGroup()) {
+                    taken.add(id);
+                    synchronized (this) {
+                        this.finished.add(new int[] { id, 0 });
+                    }
+                    passedGroups++;
+                    continue;
+                }
+
+                if (running >= this.slots) {
+                    /* Only groups can still be passed */
+                    continue;
+                }
+
+                if (!this.fits(script, building.size(), usedCpus,
+                        usedMemory)) {
+                    if (!blocked) {
+                        blocked = true;
+                        if (id != waitingFor) {
+                            waitingFor = id;
+                            passed = 0;
+                        }
+                        reserved = this.getStartTime(script, building,
+                                started, usedCpus, usedMemory, durations);
+                    }
+
+                    /* Try to fit in a smaller one */
+                    continue;
+                }
+
+                if (blocked) {
+                    long duration = durations.getDuration(qlf);
+                    if (reserved < 0 || duration < 0 ||
+                            now + duration * 1000 > reserved) {
+                        if (passed >= this.slots) {
+                            /* It would keep the first one waiting */
+                            continue;
+                        }
+                        passed++;
+                    }
+                }
+
+                taken.add(id);
+                building.add(id);
+                usedCpus += script.getCpus();
+                usedMemory += script.getMemory();
+
+                started[id] = System.currentTimeMillis();
+                running++;
+                this.status("Started " + qlf + " (" + running + " running, " +
+                        (remaining - running - passedGroups) + " waiting)");
+                this.start(id);
+            }
+
+            for (Integer id : taken) {
+                ready.remove(id);
+            }
+
+            if (running == 0 && passedGroups == 0) {
+                /* Everything left depends on a failed script */
+                break;
+            }
+
+            int[] result = null;
+            synchronized (this) {
+                try {
+                    while (this.finished.isEmpty()) {
+                        this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    this.stopping = true;
+                    for (Process process : this.processes.values()) {
+                        process.destroy();
+                    }
+                    throw e;
+                }
+                result = this.finished.removeFirst();
+            }
+
+            int id = result[0];
+            String qlf = this.graph.getName(id);
+            remaining--;
+
+            if (started[id] != 0) {
+                Script script = this.loader.getScript(
+                        Script.getUnqualifiedName(qlf));
+                running--;
+                building.remove(Integer.valueOf(id));
+                usedCpus -= script.getCpus();
+                usedMemory -= script.getMemory();
+            } else {
+                passedGroups--;
+            }
+
+            if (result[1] != 0) {
+                failed[id] = true;
+                this.status("Failed " + qlf + " (exit code " + result[1] +
+                        ")");
+                remaining -= this.skipDependents(id, selected, failed);
+                continue;
+            }
+
+            if (started[id] != 0) {
+                this.status("Finished " + qlf + " in " +
+                        ((System.currentTimeMillis() - started[id]) / 1000) +
+                        "s");
+            }
+
+            for (int i = 0; i < this.graph.getDependentCount(id); i++) {
+                int dependent = this.graph.getDependent(id, i);
+                if (selected[dependent] && --waiting[dependent] == 0 &&
+                        !failed[dependent]) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        List<String> list = new ArrayList<String>();
+        for (int id = 0; id < size; id++) {
+            if (failed[id]) {
+                list.add(this.graph.getName(id));
+            }
+        }
+
+        return list;
+    }
+
+    /*
+     * Returns whether 'script' may be started while 'building' commands are
+     * running, using 'usedCpus' processors and 'usedMemory' MiB of memory.
+     * Used only by run() and getStartTime().
+     */
+    private boolean fits(Script script, int building, int usedCpus,
+            long usedMemory) {
+        return building == 0 ||
+                (usedCpus + script.getCpus() <= this.cpus &&
+                 (this.memory == 0 ||
+                  usedMemory + script.getMemory() <= this.memory));
+    }
+
+    /*
+     * Returns the time at which 'script' may be started, if every script in
+     * 'building' takes as long as it did before, or -1 if that is not known
+     * for all of them. Used only by run().
+     */
+    private long getStartTime(Script script, List<Integer> building,
+            long[] started, int usedCpus, long usedMemory,
+            BuildDurations durations) {
+        long[][] ends = new long[building.size()][];
+        for (int i = 0; i < ends.length; i++) {
+            int id = building.get(i);
+            String qlf = this.graph.getName(id);
+            long duration = durations.getDuration(qlf);
+            if (duration < 0) {
+                return -1;
+            }
+
+            Script running = this.loader.getScript(
+                    Script.getUnqualifiedName(qlf));
+            ends[i] = new long[] { started[id] + duration * 1000,
+                    running.getCpus(), running.getMemory() };
+        }
+
+        Arrays.sort(ends, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+            }
+        });
+
+        long time = -1;
+        for (int i = 0; i < ends.length &&
+                !this.fits(script, ends.length - i, usedCpus, usedMemory);
+                i++) {
+            time = ends[i][0];
+            usedCpus -= ends[i][1];
+            usedMemory -= ends[i][2];
+        }
+
+        return time;
+    }
+
+    /*
+     * Marks every selected script depending on 'id' as failed, and returns
+     * the number of scripts newly marked. Used only by run().
+     */
+    private int skipDependents(int id, boolean[] selected, boolean[] failed) {
+        int count = 0;
+
+        for (int[] level : this.graph.getDependentLevels(new int[] { id })) {
+            for (int dependent : level) {
+                if (selected[dependent] && !failed[dependent]) {
+                    failed[dependent] = true;
+                    count++;
+                    this.status("Skipped " + this.graph.getName(dependent) +
+                            ", because " + this.graph.getName(id) +
+                            " has failed");
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     * Starts the command for the script identified by 'id' in a new thread,
+     * which adds the exit code to 'finished' when it is done. The process is
+     * kept in 'processes' while it runs, so that run() can destroy it when
+     * interrupted. Used only by run().
+     */
+    private void start(final int id) {
+        final String qlf = this.graph.getName(id);
+
+        Thread thread = new Thread() {
+            public void run() {
+                int exitCode = 1;
+                Process process = null;
+
+                try {
+                    String[] cmd = new String[command.length + 1];
+                    System.arraycopy(command, 0, cmd, 0, command.length);
+                    cmd[command.length] = qlf;
+
+                    process = Runtime.getRuntime().exec(cmd);
+                    synchronized (BuildExecutor.this) {
+                        if (stopping) {
+                            process.destroy();
+                        }
+                        processes.put(id, process);
+                    }
+                    process.getOutputStream().close();
+
+                    Thread errors = copy(process.getErrorStream(), qlf);
+                    copy(process.getInputStream(), qlf).join();
+                    errors.join();
+
+                    exitCode = process.waitFor();
+                } catch (IOException e) {
+                    status("Unable to start " + qlf + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    /* Report it as failed, and do not leave it running */
+                    if (process != null) {
+                        process.destroy();
+                    }
+                    Thread.currentThread().interrupt();
+                }
+
+                synchronized (BuildExecutor.this) {
+                    processes.remove(id);
+                    finished.add(new int[] { id, exitCode });
+                    BuildExecutor.this.notifyAll();
+                }
+            }
+        };
+
+        thread.start();
+    }
+
+    /*
+     * Starts a thread which copies every line of 'in' to the output, prefixed
+     * with 'qlf'. Used only by start().
+     */
+    private Thread copy(final InputStream in, final String qlf) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    BufferedReader r = new BufferedReader(
+                            new InputStreamReader(in));
+                    try {
+                        String line = null;
+                        while ((line = r.readLine()) != null) {
+                            synchronized (out) {
+                                out.println("[" + qlf + "] " + line);
+                            }
+                        }
+                    } finally {
+                        r.close();
+                    }
+                } catch (IOException e) {
+                    /* The process has gone away */
+                }
+            }
+        };
+
+        thread.start();
+
+        return thread;
+    }
+
+    /* Writes a progress message to the output */
+    private void status(String message) {
+        synchronized (this.out) {
+            this.out.println("[LFC] " + message);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * - BuildPlan.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.StringTokenizer;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * A resolved build order, saved to a journal file so that it does not need
+ * to be resolved again for every package that is built.
+ * <p>
+ * The journal starts with a hash of everything the plan was resolved from:
+ * the selected names and dependency levels, the excluded names, the package
+ * directory, the modification times of the repository directories and
+ * those of every script that was loaded for the plan (including those left
+ * out because they are excluded, or depend on an excluded script). If any of
+ * these change, the journal is no longer used and the plan must be resolved
+ * again.
+ * <p>
+ * Each time the next package to build is asked for, its position is
+ * appended to the journal. The next search starts from that position, so
+ * packages which were built earlier are not looked at again.
+ * <p>
+ * Whether a package must be built is decided when the search reaches it, so
+ * after everything it depends on has been built. At that point, a package
+ * whose script has not changed since it was built need not be built again
+ * if all of its dependencies still offer the interface it was built against
+ * (see {@link PackageStore#isCompatible(String, List)}), even though its key
+ * has changed.
+ */
+public class BuildPlan {
+    private static final String HEADER = "# LFClass build plan, version 3";
+
+    private final File file;
+    private final ScriptSearch search;
+    private final String[] names;
+    private final boolean[] groups;
+    private final String[] keys;
+    private final int[][] deps;
+    private int cursor;
+
+    private BuildPlan(File file, ScriptSearch search, String[] names,
+            boolean[] groups, String[] keys, int[][] deps, int cursor) {
+        this.file = file;
+        this.search = search;
+        this.names = names;
+        this.groups = groups;
+        this.keys = keys;
+        this.deps = deps;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Returns the default location of the journal for scripts in the
+     * <code>search</code> directory. This is a file next to that directory,
+     * named after it with <code>.plan</code> appended. For a search path,
+     * the first directory in it is used.
+     */
+    public static File getDefaultFile(String search) {
+        File dir = (new File(ScriptSearch.getRoots(search)[0]))
+                .getAbsoluteFile();
+
+        return new File(dir.getParentFile(), dir.getName() + ".plan");
+    }
+
+    /**
+     * Reads the plan in <code>file</code>, if it was resolved from the same
+     * inputs.
+     *
+     * @return the plan, or <code>null</code> if the file does not exist, can
+     *         not be read or was resolved from different inputs.
+     */
+    public static BuildPlan load(File file, String search, String packSearch,
+            List<String> depLevels, Set<String> selection,
+            Set<String> excludes) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        ScriptSearch index = ScriptSearch.index(search);
+
+        List<String> names = new ArrayList<String>();
+        List<Boolean> groups = new ArrayList<Boolean>();
+        List<String> keys = new ArrayList<String>();
+        List<int[]> deps = new ArrayList<int[]>();
+        List<String> loaded = new ArrayList<String>();
+        String inputs = null;
+        int cursor = 0;
+
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(file));
+            try {
+                if (!HEADER.equals(r.readLine())) {
+                    return null;
+                }
+
+                String line = r.readLine();
+                if (line == null || !line.startsWith("inputs ")) {
+                    return null;
+                }
+                inputs = line.substring(7);
+
+                line = r.readLine();
+                if (line == null || !line.startsWith("loaded")) {
+                    return null;
+                }
+                StringTokenizer t = new StringTokenizer(
+                        line.substring(6), " ");
+                while (t.hasMoreTokens()) {
+                    loaded.add(t.nextToken());
+                }
+
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("cursor ")) {
+                        cursor = Integer.parseInt(line.substring(7));
+                        continue;
+                    }
+
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 4) {
+                        return null;
+                    }
+
+                    names.add(fields[0]);
+                    groups.add(fields[1].equals("1"));
+                    keys.add(fields[2]);
+
+                    t = new StringTokenizer(fields[3], " ");
+                    int[] ids = new int[t.countTokens()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = Integer.parseInt(t.nextToken());
+                        if (ids[i] < 0 || ids[i] >= deps.size()) {
+                            return null;
+                        }
+                    }
+                    deps.add(ids);
+                }
+            } finally {
+                r.close();
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (cursor < 0 || cursor > names.size() || !inputs.equals(hashInputs(
+                index, packSearch, depLevels, selection, excludes,
+                loaded))) {
+            return null;
+        }
+
+        boolean[] groupFlags = new boolean[groups.size()];
+        for (int i = 0; i < groupFlags.length; i++) {
+            groupFlags[i] = groups.get(i);
+        }
+
+        return new BuildPlan(file, index,
+                names.toArray(new String[names.size()]),
+                groupFlags, keys.toArray(new String[keys.size()]),
+                deps.toArray(new int[deps.size()][]), cursor);
+    }
+
+    /**
+     * Creates a plan from the <code>order</code> resolved by
+     * <code>loader</code>, with the package keys in <code>keys</code>, and
+     * writes it to <code>file</code>. Every
+     * dependency of an entry in <code>order</code> must be in
+     * <code>order</code> as well, before the entry itself.
+     * <p>
+     * All scripts loaded by <code>loader</code> are part of the inputs of the
+     * plan, not just those in <code>order</code>, so that changes to excluded
+     * scripts are noticed too.
+     * <p>
+     * Failing to write the journal is not fatal, as it only means the plan
+     * must be resolved again next time.
+     */
+    public static BuildPlan create(File file, DynamicScriptLoader loader,
+            PackageKeys keys, List<String> order, String packSearch,
+            List<String> depLevels, Set<String> selection,
+            Set<String> excludes) {
+        int size = order.size();
+
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        String[] names = new String[size];
+        boolean[] groups = new boolean[size];
+        String[] packageKeys = new String[size];
+        int[][] deps = new int[size][];
+
+        for (int id = 0; id < size; id++) {
+            names[id] = order.get(id);
+            packageKeys[id] = keys.getKey(names[id]);
+
+            Script script = loader.getScript(
+                    Script.getUnqualifiedName(names[id]));
+            groups[id] = script.isGroup();
+
+            Set<String> depNames = script.getDependencies();
+            deps[id] = new int[depNames.size()];
+            int count = 0;
+            for (String dep : depNames) {
+                Integer target = ids.get(dep);
+                if (target == null) {
+                    throw new IllegalArgumentException(names[id] +
+                            " depends on " + dep + ", which comes later");
+                }
+                deps[id][count++] = target;
+            }
+
+            ids.put(script.getUnqualifiedName(), id);
+        }
+
+        List<String> loaded = loader.getBuildOrder();
+        ScriptSearch search = loader.getSearchIndex();
+        String inputs = hashInputs(search, packSearch, depLevels, selection,
+                excludes, loaded);
+
+        File tmp = null;
+        try {
+            /* A unique name, as other processes may be writing a plan too */
+            tmp = File.createTempFile(file.getName() + ".", ".tmp",
+                    file.getAbsoluteFile().getParentFile());
+
+            Writer w = new BufferedWriter(new FileWriter(tmp));
+            try {
+                w.write(HEADER + "\n");
+                w.write("inputs " + inputs + "\n");
+
+                w.write("loaded");
+                for (String qlf : loaded) {
+                    w.write(" " + qlf);
+                }
+                w.write("\n");
+
+                for (int id = 0; id < size; id++) {
+                    w.write(names[id] + "\t" + (groups[id] ? "1" : "0") +
+                            "\t" + packageKeys[id] + "\t");
+                    for (int i = 0; i < deps[id].length; i++) {
+                        w.write((i == 0 ? "" : " ") + deps[id][i]);
+                    }
+                    w.write("\n");
+                }
+            } finally {
+                w.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                file.delete();
+            }
+        } catch (IOException e) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            file.delete();
+        }
+
+        return new BuildPlan(file, search, names, groups, packageKeys, deps,
+                0);
+    }
+
+    /**
+     * Returns the qualified name of the first entry in the plan which is
+     * not a group and has not been built (or is out of date, see
+     * {@link #isCurrent(String, PackageStore)}), or <code>null</code> if
+     * there is none.
+     * <p>
+     * The position of the returned entry is appended to the journal, and the
+     * next call starts looking from there. Packages are expected not to be
+     * removed from <code>store</code> while the plan is in use.
+     */
+    public String next(PackageStore store) {
+        int id = this.cursor;
+        while (id < this.names.length &&
+                (this.groups[id] || this.isCurrent(id, store))) {
+            id++;
+        }
+
+        /* Only append to a journal that has been written completely */
+        if (id != this.cursor && this.file.isFile()) {
+            try {
+                Writer w = new OutputStreamWriter(new FileOutputStream(
+                        this.file.getPath(), true));
+                try {
+                    w.write("cursor " + id + "\n");
+                } finally {
+                    w.close();
+                }
+            } catch (IOException e) {
+                /* The next call simply starts from an earlier position */
+            }
+        }
+        this.cursor = id;
+
+        return id < this.names.length ? this.names[id] : null;
+    }
+
+    /**
+     * Returns whether the package for the entry <code>qlf</code> in
+     * <code>store</code> need not be built again. This is the case if it was
+     * built from its current key (see
+     * {@link PackageStore#isCurrent(String, String)}), or if its script has
+     * not changed since and all of its dependencies still offer the same
+     * interface. The latter assumes the dependencies themselves have been
+     * built already, as the plan does not look at an entry before that.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not in this
+     *         plan.
+     */
+    public boolean isCurrent(String qlf, PackageStore store) {
+        int id = Arrays.asList(this.names).indexOf(qlf);
+        if (id == -1) {
+            throw new IllegalArgumentException(qlf);
+        }
+
+        return this.isCurrent(id, store);
+    }
+
+    /* See isCurrent(String, PackageStore). Also used by next(). */
+    private boolean isCurrent(int id, PackageStore store) {
+        String qlf = this.names[id];
+
+        if (store.isCurrent(qlf, this.keys[id])) {
+            return true;
+        } else if (!store.isBuilt(qlf) ||
+                !store.isBuiltSince(qlf, this.search)) {
+            return false;
+        }
+
+        /* Groups do not build anything, so look through them */
+        List<String> deps = new ArrayList<String>();
+        boolean[] seen = new boolean[id];
+        List<Integer> todo = new ArrayList<Integer>();
+        for (int dep : this.deps[id]) {
+            todo.add(dep);
+        }
+        while (!todo.isEmpty()) {
+            int dep = todo.remove(todo.size() - 1);
+            if (seen[dep]) {
+                continue;
+            }
+            seen[dep] = true;
+
+            if (this.groups[dep]) {
+                for (int member : this.deps[dep]) {
+                    todo.add(member);
+                }
+            } else {
+                deps.add(this.names[dep]);
+            }
+        }
+
+        return store.isCompatible(qlf, deps);
+    }
+
+    /**
+     * Returns the qualified names of the entry <code>qlf</code> and all of
+     * its (direct and indirect) dependencies, in building order. This is the
+     * same as {@link DynamicScriptLoader#getBuildOrder(String)}.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not in this
+     *         plan.
+     */
+    public List<String> getBuildOrder(String qlf) {
+        int start = Arrays.asList(this.names).indexOf(qlf);
+        if (start == -1) {
+            throw new IllegalArgumentException(qlf);
+        }
+
+        /* Dependencies always come earlier in the plan */
+        boolean[] needed = new boolean[start + 1];
+        needed[start] = true;
+        for (int id = start; id >= 0; id--) {
+            if (needed[id]) {
+                for (int dep : this.deps[id]) {
+                    needed[dep] = true;
+                }
+            }
+        }
+
+        List<String> list = new ArrayList<String>();
+        for (int id = 0; id <= start; id++) {
+            if (needed[id]) {
+                list.add(this.names[id]);
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns the package key (see {@link PackageKeys}) of the entry
+     * <code>qlf</code>, as it was when the plan was resolved.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not in this
+     *         plan.
+     */
+    public String getKey(String qlf) {
+        int id = Arrays.asList(this.names).indexOf(qlf);
+        if (id == -1) {
+            throw new IllegalArgumentException(qlf);
+        }
+
+        return this.keys[id];
+    }
+
+    /*
+     * Returns a hash of everything a plan is resolved from, as a hexadecimal
+     * number. The scripts that were loaded are identified by their
+     * modification time and size, the repository directories (which change
+     * when scripts are added or removed) by their modification time. Used by
+     * load() and create().
+     */
+    private static String hashInputs(ScriptSearch search, String packSearch,
+            List<String> depLevels, Set<String> selection,
+            Set<String> excludes, List<String> loaded) {
+        StringBuilder s = new StringBuilder();
+
+        s.append((new File(packSearch)).getAbsolutePath()).append('\n');
+        s.append(depLevels).append('\n');
+        s.append(new TreeSet<String>(selection)).append('\n');
+        s.append(new TreeSet<String>(excludes)).append('\n');
+
+        for (String root : search.getRoots()) {
+            String[] repos = (new File(root)).list();
+            if (repos != null) {
+                for (String repo : new TreeSet<String>(Arrays.asList(repos))) {
+                    s.append(repo).append(' ');
+                    s.append((new File(root, repo)).lastModified());
+                    s.append('\n');
+                }
+            }
+        }
+
+        for (String qlf : loaded) {
+            File f = search.getFile(qlf);
+            s.append(qlf).append(' ').append(f.lastModified()).append(' ');
+            s.append(f.length()).append('\n');
+        }
+
+        /* 64 bit FNV-1a */
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return Long.toHexString(hash);
+    }
+}
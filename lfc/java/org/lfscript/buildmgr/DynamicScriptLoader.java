@@ -26,12 +26,19 @@ package org.lfscript.buildmgr;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 import java.util.Set;
 import java.util.HashSet;
 import java.util.TreeSet;
 
-import java.util.Stack;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+
+import java.io.IOException;
 
 /**
  * Dynamically loads and keeps selected <code>Script</code>s and their
@@ -83,6 +90,7 @@ import java.util.Stack;
  */
 public class DynamicScriptLoader extends ScriptLoader {
     private final List<String> buildOrder;
+    private final ScriptGraph graph;
 
     /**
      * Constructs a new <code>DynamicScriptLoader</code> and attempts to
@@ -105,6 +113,41 @@ public class DynamicScriptLoader extends ScriptLoader {
     public DynamicScriptLoader(Set<String> names, String search,
             List<String> depLevels) throws ScriptLoaderException {
 
+        this(names, search, depLevels, null);
+    }
+
+    /**
+     * Constructs a new <code>DynamicScriptLoader</code> like
+     * {@link #DynamicScriptLoader(Set, String, List)}, but takes the contents
+     * of unmodified scripts from <code>cache</code> instead of parsing them.
+     * <p>
+     * Newly parsed scripts are added to <code>cache</code>, which is saved
+     * before this constructor returns. A <code>null</code> value disables
+     * caching.
+     *
+     * @see ScriptCache
+     */
+    public DynamicScriptLoader(Set<String> names, String search,
+            List<String> depLevels, ScriptCache cache)
+            throws ScriptLoaderException {
+
+        this(names, search, depLevels, cache, 1);
+    }
+
+    /**
+     * Constructs a new <code>DynamicScriptLoader</code> like
+     * {@link #DynamicScriptLoader(Set, String, List, ScriptCache)}, but
+     * reads and parses scripts using up to <code>threads</code> threads.
+     * <p>
+     * Scripts are discovered breadth first; all newly found scripts at the
+     * same depth are parsed concurrently. The resulting building order and
+     * any <code>ScriptLoaderException</code> are the same as those of a
+     * single threaded load.
+     */
+    public DynamicScriptLoader(Set<String> names, String search,
+            List<String> depLevels, ScriptCache cache, int threads)
+            throws ScriptLoaderException {
+
         super(search);
 
         /* Initialize the fields of this object. */
@@ -175,19 +218,277 @@ public class DynamicScriptLoader extends ScriptLoader {
             throw new IllegalArgumentException(exception);
         }
 
+        /* Read the requested scripts, and all of it's dependencies. */
+        Map<String, Object> loaded = this.preload(unqualified, depLevels,
+                cache, threads);
+
         /* Try to load the requested scripts, and all of it's dependencies. */
-        this.recursiveLoader(unqualified, new Stack<String>(), exception,
-                depLevels);
+        this.recursiveLoader(unqualified, exception, loaded);
+
+        if (cache != null) {
+            try {
+                cache.save(super.getSearchIndex());
+            } catch (IOException e) {
+                /* A cache that can not be written is not a problem */
+            }
+        }
+
+        /* Number the scripts in building order */
+        List<Script> scripts = new ArrayList<Script>();
+        for (String qlf : this.buildOrder) {
+            scripts.add(super.getScript(Script.getUnqualifiedName(qlf)));
+        }
+        ScriptGraph graph = new ScriptGraph(scripts);
+
+        /* Check for circular dependencies */
+        for (int[] group : graph.getCycles()) {
+            Set<String> members = new TreeSet<String>();
+            int start = group[0];
+            for (int id : group) {
+                members.add(graph.getName(id));
+                start = Math.max(start, id);
+            }
+            exception.getCircularGroups().add(members);
+
+            /* Report the chain through the script that was loaded first */
+            int[] cycle = graph.getCycle(start, group);
+            String[] chain = new String[cycle.length];
+            for (int i = 0; i < cycle.length; i++) {
+                chain[i] = graph.getName(cycle[i]);
+            }
+            exception.getCircularDependencies().add(chain);
+        }
 
         /* Throw the ScriptLoaderException, if it now has entries. */
         if (exception.hasEntries()) {
             throw exception;
         }
+
+        this.graph = graph;
+    }
+
+    /* Used only by replace() */
+    private DynamicScriptLoader(DynamicScriptLoader loader, Script script,
+            ScriptGraph graph) {
+        super(loader);
+
+        super.registerScript(script.getUnqualifiedName(), script);
+
+        /* Never modified once constructed, so it can be shared */
+        this.buildOrder = loader.buildOrder;
+        this.graph = graph;
+    }
+
+    /*
+     * Returns a loader like this one, but with 'script' in place of the
+     * loaded script with the same qualified name. Only the dependencies of
+     * that script are replaced in the graph; nothing is read from disk.
+     *
+     * Returns null if the result could differ from that of loading all
+     * scripts again by more than the order of the scripts: if 'script' was
+     * not loaded, if it now depends on a script which was not loaded or is
+     * built after it (which might also be circular), or if it no longer
+     * depends on a script nothing else depends on. The building order of the
+     * result is valid, but may differ from that of a new loader. When the
+     * dependencies did not change, the graph is shared with this loader.
+     *
+     * Used only by ResidentLoader.
+     */
+    DynamicScriptLoader replace(Script script) {
+        int id = this.graph.getId(script.getUnqualifiedName());
+        if (id == -1 ||
+                !this.graph.getName(id).equals(script.getQualifiedName())) {
+            return null;
+        }
+
+        Set<String> depNames = script.getDependencies();
+        int[] targets = new int[depNames.size()];
+        int count = 0;
+        for (String dep : depNames) {
+            int target = this.graph.getId(dep);
+            if (target == -1 || target >= id) {
+                return null;
+            }
+            targets[count++] = target;
+        }
+
+        /* Both are in the order of the names, so they can be compared */
+        boolean same = count == this.graph.getDependencyCount(id);
+        for (int i = 0; same && i < count; i++) {
+            same = targets[i] == this.graph.getDependency(id, i);
+        }
+
+        if (same) {
+            return new DynamicScriptLoader(this, script, this.graph);
+        }
+
+        ScriptGraph graph = this.graph.replace(id, targets);
+
+        /* A script that is no longer needed would be left out by a new load */
+        for (int i = 0; i < this.graph.getDependencyCount(id); i++) {
+            int dep = this.graph.getDependency(id, i);
+            if (graph.getDependentCount(dep) == 0) {
+                return null;
+            }
+        }
+
+        return new DynamicScriptLoader(this, script, graph);
+    }
+
+    /*
+     * Reads every script reachable from 'unqualified', breadth first, and
+     * returns a Map from qualified names to either a Script or the
+     * ScriptNotFoundException or ScriptParserException thrown while reading
+     * it. Names which can not be resolved are skipped; recursiveLoader()
+     * reports them. Used only by the constructor.
+     */
+    private Map<String, Object> preload(Set<String> unqualified,
+            List<String> depLevels, ScriptCache cache, int threads) {
+        Map<String, Object> loaded = new HashMap<String, Object>();
+        Set<String> seen = new HashSet<String>(unqualified);
+        Set<String> frontier = new TreeSet<String>(unqualified);
+
+        while (!frontier.isEmpty()) {
+            List<Script> found = new ArrayList<Script>();
+            List<String> toParse = new ArrayList<String>();
+
+            for (String unq : frontier) {
+                String qlf = null;
+                try {
+                    qlf = super.getRegisteredName(unq);
+                } catch (IllegalArgumentException e) {
+                    Set<String> exs = super.getExistingNames(unq);
+                    if (exs.size() != 1) {
+                        continue;
+                    }
+                    qlf = exs.iterator().next();
+                }
+
+                Script script = null;
+                if (cache != null) {
+                    script = cache.getScript(qlf, super.getSearchIndex(),
+                            depLevels);
+                }
+
+                if (script != null) {
+                    loaded.put(qlf, script);
+                    found.add(script);
+                } else {
+                    toParse.add(qlf);
+                }
+            }
+
+            Object[] parsed = DynamicScriptLoader.parse(toParse,
+                    super.getSearchIndex(), depLevels, threads);
+
+            for (int i = 0; i < parsed.length; i++) {
+                if (parsed[i] instanceof RuntimeException) {
+                    throw (RuntimeException)parsed[i];
+                }
+
+                loaded.put(toParse.get(i), parsed[i]);
+
+                if (parsed[i] instanceof Script) {
+                    Script script = (Script)parsed[i];
+                    found.add(script);
+
+                    if (cache != null) {
+                        cache.putScript(script, super.getSearchIndex(),
+                                depLevels);
+                    }
+                }
+            }
+
+            frontier = new TreeSet<String>();
+            for (Script script : found) {
+                for (String dep : script.getDependencies()) {
+                    if (seen.add(dep)) {
+                        frontier.add(dep);
+                    }
+                }
+            }
+        }
+
+        return loaded;
     }
 
-    /* Used only by the constructor */
-    private void recursiveLoader(Set<String> unqualified, Stack<String> stack,
-            ScriptLoaderException exception, List<String> depLevels) {
+    /*
+     * Constructs a Script for every name in 'qlfs', using up to 'threads'
+     * threads. Returns an array in the same order as 'qlfs', with for each
+     * name either its Script or the exception that was thrown. Used only by
+     * preload().
+     */
+    private static Object[] parse(final List<String> qlfs,
+            final ScriptSearch search, final List<String> depLevels,
+            int threads) {
+        final Object[] results = new Object[qlfs.size()];
+        final int[] next = new int[] { 0 };
+
+        Runnable worker = new Runnable() {
+            public void run() {
+                while (true) {
+                    int i;
+                    synchronized (next) {
+                        if (next[0] == results.length) {
+                            return;
+                        }
+                        i = next[0]++;
+                    }
+
+                    try {
+                        results[i] = new Script(qlfs.get(i), search,
+                                depLevels, true);
+                    } catch (ScriptNotFoundException e) {
+                        results[i] = e;
+                    } catch (ScriptParserException e) {
+                        results[i] = e;
+                    } catch (RuntimeException e) {
+                        results[i] = e;
+                    }
+                }
+            }
+        };
+
+        int count = Math.min(threads, results.length);
+        if (count <= 1) {
+            worker.run();
+            return results;
+        }
+
+        Thread[] workers = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new Thread(worker);
+            workers[i].start();
+        }
+
+        /* Wait for all workers, even when interrupted */
+        boolean interrupted = false;
+        for (Thread t : workers) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return results;
+    }
+
+    /*
+     * Registers the scripts for 'unqualified' and their dependencies, and
+     * adds them to the building order after their dependencies. A script
+     * which is still being processed (because of circular dependencies) is
+     * skipped; these are reported by the constructor. Used only by the
+     * constructor.
+     */
+    private void recursiveLoader(Set<String> unqualified,
+            ScriptLoaderException exception, Map<String, Object> loaded) {
         for (String unq : unqualified) {
 
             /*
@@ -206,8 +507,7 @@ public class DynamicScriptLoader extends ScriptLoader {
             } catch (IllegalArgumentException e) {
 
                 /* Otherwise, search for scripts */
-                Set<String> exs = ScriptLoader.getExistingNames(unq,
-                        super.getSearch());
+                Set<String> exs = super.getExistingNames(unq);
 
                 /* Exactly one script should be found */
                 if (exs.size() == 0) {
@@ -223,31 +523,6 @@ public class DynamicScriptLoader extends ScriptLoader {
                 super.registerName(unq, qlf);
             }
 
-            /* Check for circular dependencies */
-            if (stack.contains(qlf)) {
-                List<String> subStack = null;
-
-                // Preferred implementation:
-                //subStack = stack.subList(stack.indexOf(qlf), stack.size());
-                // Alternative implementation:
-                subStack = new ArrayList<String>();
-                boolean adding = false;
-                for (String entry : stack) {
-                    if (!adding && entry.equals(qlf)) {
-                        adding = true;
-                    }
-
-                    if (adding) {
-                        subStack.add(entry);
-                    }
-                }
-                // End of alternative implementation
-
-                String[] saveStack = subStack.toArray(new String[0]);
-                exception.getCircularDependencies().add(saveStack);
-                continue;
-            }
-
             /* Load in the script, if it has not been loaded before */
             Script script = null;
 
@@ -255,27 +530,25 @@ public class DynamicScriptLoader extends ScriptLoader {
                 script = super.getScript(unq);
             } catch (IllegalArgumentException e) {
 
-                try {
-                    script = new Script(qlf, super.getSearch(), depLevels);
-                } catch (ScriptNotFoundException snfe) {
+                /* All reachable scripts have been read by preload() */
+                Object result = loaded.get(qlf);
+
+                if (result instanceof ScriptNotFoundException) {
                     exception.getNotFoundNames().add(qlf);
                     continue;
-                } catch (ScriptParserException spe) {
-                    exception.getParserExceptions().add(spe);
+                } else if (result instanceof ScriptParserException) {
+                    exception.getParserExceptions().add(
+                            (ScriptParserException)result);
                     continue;
                 }
 
+                script = (Script)result;
+
                 super.registerScript(unq, script);
 
                 /* Process the dependencies */
-                stack.push(qlf);
-                try {
-                    Set<String> depends = script.getDependencies();
-                    this.recursiveLoader(depends, stack, exception, depLevels);
-                } finally {
-                    /* Always pop(), also when exceptions are thrown */
-                    stack.pop();
-                }
+                Set<String> depends = script.getDependencies();
+                this.recursiveLoader(depends, exception, loaded);
 
                 this.buildOrder.add(qlf);
             }
@@ -310,7 +583,8 @@ public class DynamicScriptLoader extends ScriptLoader {
      * <code>Script</code> identified by <code>unq</code>.
      * <p>
      * The entries are placed in the order in which the <code>Script</code>s
-     * should be executed.
+     * should be executed. This is the same order in which they appear in
+     * {@link #getBuildOrder()}.
      *
      * @throws IllegalArgumentException if <code>unq</code> does not identify
      *         a <code>Script</code> constructed through this
@@ -319,26 +593,280 @@ public class DynamicScriptLoader extends ScriptLoader {
      * @see #getBuildOrder()
      */
     public List<String> getBuildOrder(String unq) {
+        int id = this.graph.getId(unq);
+
+        if (id == -1) {
+            throw new IllegalArgumentException(unq);
+        }
+
+        /* IDs are numbered in building order */
+        int[] closure = this.graph.getClosure(id);
+
+        List<String> list = new ArrayList<String>(closure.length);
+        for (int dep : closure) {
+            list.add(this.graph.getName(dep));
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns a <code>List</code> with the qualified names of the
+     * <code>Script</code>s identified by <code>names</code> and all of their
+     * dependencies, in building order. Entries in <code>names</code> may be
+     * qualified or unqualified.
+     * <p>
+     * Loading the scripts for several sets of names at once, and then
+     * asking for the order of each set with this method, gives the same
+     * scripts as loading every set on its own, but reads the scripts only
+     * once. The entries are in the same order as in {@link #getBuildOrder()},
+     * which may differ from the order of a loader for just one set.
+     *
+     * @throws IllegalArgumentException if an entry in <code>names</code> does
+     *         not identify a <code>Script</code> constructed through this
+     *         <code>DynamicScriptLoader</code>.
+     *
+     * @see #getBuildOrders(Map)
+     */
+    public List<String> getBuildOrder(Set<String> names) {
+        int[] start = new int[names.size()];
+        int count = 0;
+        for (String name : names) {
+            start[count++] = this.getId(name);
+        }
+
+        /* IDs are numbered in building order */
+        int[] closure = this.graph.getClosure(start);
+
+        List<String> list = new ArrayList<String>(closure.length);
+        for (int id : closure) {
+            list.add(this.graph.getName(id));
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns the building order of every set of names in
+     * <code>profiles</code>, as returned by {@link #getBuildOrder(Set)}, by
+     * the same key. The scripts for all of the sets must have been loaded by
+     * this <code>DynamicScriptLoader</code>.
+     *
+     * @throws IllegalArgumentException if an entry in <code>profiles</code>
+     *         does not identify a <code>Script</code> constructed through
+     *         this <code>DynamicScriptLoader</code>.
+     */
+    public Map<String, List<String>> getBuildOrders(
+            Map<String, Set<String>> profiles) {
+        Map<String, List<String>> orders = new TreeMap<String, List<String>>();
+
+        for (Map.Entry<String, Set<String>> profile : profiles.entrySet()) {
+            orders.put(profile.getKey(), this.getBuildOrder(
+                    profile.getValue()));
+        }
+
+        return orders;
+    }
+
+    /**
+     * Returns whether the <code>Script</code> identified by <code>unq</code>
+     * (directly or indirectly) depends on the one identified by
+     * <code>dep</code>.
+     *
+     * @throws IllegalArgumentException if <code>unq</code> or
+     *         <code>dep</code> does not identify a <code>Script</code>
+     *         constructed through this <code>DynamicScriptLoader</code>.
+     */
+    public boolean dependsOn(String unq, String dep) {
+        return this.graph.reaches(this.getId(unq), this.getId(dep));
+    }
+
+    /**
+     * Returns the qualified names of the shortest chain of dependencies
+     * leading from the <code>Script</code> identified by <code>unq</code> to
+     * the one identified by <code>dep</code>, both included. Every entry
+     * directly depends on the next.
+     * <p>
+     * Returns <code>null</code> if <code>unq</code> does not depend on
+     * <code>dep</code>.
+     *
+     * @throws IllegalArgumentException if <code>unq</code> or
+     *         <code>dep</code> does not identify a <code>Script</code>
+     *         constructed through this <code>DynamicScriptLoader</code>.
+     */
+    public List<String> getDependencyChain(String unq, String dep) {
+        int[] chain = this.graph.getChain(this.getId(unq), this.getId(dep));
+
+        if (chain == null) {
+            return null;
+        }
+
+        List<String> list = new ArrayList<String>(chain.length);
+        for (int id : chain) {
+            list.add(this.graph.getName(id));
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns the qualified names of all <code>Script</code>s constructed
+     * through this <code>DynamicScriptLoader</code> which depend on the one
+     * identified by <code>dep</code>, and on which no other
+     * <code>Script</code> depends. These are the scripts that were asked for
+     * which pull in <code>dep</code>. Entries are in building order.
+     *
+     * @throws IllegalArgumentException if <code>dep</code> does not identify
+     *         a <code>Script</code> constructed through this
+     *         <code>DynamicScriptLoader</code>.
+     */
+    public List<String> getRootsPullingIn(String dep) {
+        int target = this.getId(dep);
+
+        /* Everything depending on 'target'; the first level is itself */
+        boolean[] dependent = new boolean[this.graph.size()];
+        int[][] levels = this.graph.getDependentLevels(new int[] { target });
+        for (int level = 1; level < levels.length; level++) {
+            for (int id : levels[level]) {
+                dependent[id] = true;
+            }
+        }
+
         List<String> list = new ArrayList<String>();
-        Set<String> deps = super.getScript(unq).getDependencies();
+        for (int id = target + 1; id < dependent.length; id++) {
+            if (dependent[id] && this.graph.getDependentCount(id) == 0) {
+                list.add(this.graph.getName(id));
+            }
+        }
+
+        return list;
+    }
+
+    /*
+     * Returns the ID of the script identified by 'name', which may be
+     * qualified. Used by the reachability queries and getBuildOrder(Set).
+     */
+    private int getId(String name) {
+        int id = this.graph.getId(Script.getUnqualifiedName(name));
+
+        if (id == -1) {
+            throw new IllegalArgumentException(name);
+        }
+
+        return id;
+    }
+
+    /**
+     * Returns the qualified names of all <code>Script</code>s constructed
+     * through this <code>DynamicScriptLoader</code>, grouped in levels.
+     * <p>
+     * The <code>Script</code>s in the first level have no dependencies.
+     * Every other <code>Script</code> only depends on <code>Script</code>s in
+     * earlier levels, and is placed in the first level for which this is
+     * true. All <code>Script</code>s within one level may therefore be
+     * executed at the same time, once the previous levels are done.
+     * <p>
+     * Within a level, entries are in the same order as in
+     * {@link #getBuildOrder()}.
+     */
+    public List<List<String>> getBuildLevels() {
+        int[] levels = this.graph.getLevels();
+
+        List<List<String>> list = new ArrayList<List<String>>();
+        for (int id = 0; id < levels.length; id++) {
+            while (list.size() <= levels[id]) {
+                list.add(new ArrayList<String>());
+            }
+
+            list.get(levels[id]).add(this.graph.getName(id));
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns the same levels as {@link #getBuildLevels()}, but with the
+     * entries within every level sorted by the length of their critical
+     * path, longest first.
+     * <p>
+     * The critical path of a <code>Script</code> is the time it takes to
+     * build it, plus the longest critical path of any <code>Script</code>
+     * depending on it. Starting the <code>Script</code>s with the longest
+     * critical path first shortens the total time needed when building in
+     * parallel.
+     */
+    public List<List<String>> getBuildLevels(BuildDurations durations) {
+        final long[] paths = this.getCriticalPaths(durations);
+        int[] levels = this.graph.getLevels();
+
+        List<List<Integer>> ids = new ArrayList<List<Integer>>();
+        for (int id = 0; id < levels.length; id++) {
+            while (ids.size() <= levels[id]) {
+                ids.add(new ArrayList<Integer>());
+            }
+
+            ids.get(levels[id]).add(id);
+        }
+
+        List<List<String>> list = new ArrayList<List<String>>();
+        for (List<Integer> level : ids) {
+            Collections.sort(level, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    if (paths[a] != paths[b]) {
+                        return paths[a] > paths[b] ? -1 : 1;
+                    }
+
+                    return a.compareTo(b);
+                }
+            });
 
-        this.recursiveOrdering(deps, list);                
+            List<String> names = new ArrayList<String>(level.size());
+            for (int id : level) {
+                names.add(this.graph.getName(id));
+            }
+            list.add(names);
+        }
 
-        list.add(super.getRegisteredName(unq));
         return list;
     }
 
-    /* Used only by getBuildOrder(String) */
-    private void recursiveOrdering(Set<String> names, List<String> list) {
-        for (String dep : names) {
-            Set<String> deps = super.getScript(dep).getDependencies();
-            this.recursiveOrdering(deps, list);
+    /* Returns the dependency graph of the scripts, indexed by building order */
+    ScriptGraph getGraph() {
+        return this.graph;
+    }
+
+    /*
+     * Returns the critical path of every script in the graph, using the
+     * durations of earlier builds as weights.
+     */
+    long[] getCriticalPaths(BuildDurations durations) {
+        long[] weights = new long[this.graph.size()];
+        long known = 0;
+        long total = 0;
+
+        for (int id = 0; id < weights.length; id++) {
+            String qlf = this.graph.getName(id);
+
+            if (this.getScript(Script.getUnqualifiedName(qlf)).isGroup()) {
+                weights[id] = 0;
+            } else {
+                weights[id] = durations.getDuration(qlf);
+                if (weights[id] > -1) {
+                    known++;
+                    total += weights[id];
+                }
+            }
+        }
 
-            String qName = super.getRegisteredName(dep);
-            if(!list.contains(qName)) {
-                list.add(qName);
+        /* Estimate the unknown durations */
+        long estimate = known == 0 ? 1 : Math.max(1, total / known);
+        for (int id = 0; id < weights.length; id++) {
+            if (weights[id] == -1) {
+                weights[id] = estimate;
             }
         }
+
+        return this.graph.getCriticalPaths(weights);
     }
 
     public List<String> getRevisedBuildOrder(Set<String> namesToRemove) {
@@ -356,43 +884,158 @@ public class DynamicScriptLoader extends ScriptLoader {
         return ret;
     }
 
+    /**
+     * Returns a <code>Set</code> with the unqualified names of all
+     * <code>Script</code>s which (directly or indirectly) depend on any of
+     * the <code>Script</code>s identified by <code>namesToRemove</code>. The
+     * names from <code>namesToRemove</code> are included as well.
+     *
+     * @throws IllegalArgumentException if an entry in
+     *         <code>namesToRemove</code> is not a valid identifier.
+     *
+     * @see #getDependentLevels(Set)
+     */
     public Set<String> getDependentOn(final Set<String> namesToRemove) {
-
-        /*
-         * Create a local copy of 'namesToRemove' so that this local copy
-         * can safely be modified.
-         */
         Set<String> toRemove = new TreeSet<String>();
-        for (String name : namesToRemove) {
-            toRemove.add(Script.getUnqualifiedName(name));
+
+        for (Set<String> level : this.getDependentLevels(namesToRemove)) {
+            toRemove.addAll(level);
+        }
+
+        return toRemove;
+    }
+
+    /**
+     * Returns the unqualified names of the <code>Script</code>s that must be
+     * rebuilt when those identified by <code>names</code> are, which are
+     * included as well. Unlike {@link #getDependentOn(Set)}, this only
+     * follows a dependency past a package whose interface may have changed.
+     * <p>
+     * A <code>Script</code> must be rebuilt if one of its dependencies must be
+     * rebuilt itself, or is in <code>names</code> and either has not been
+     * rebuilt since its script was last modified, or was rebuilt with a
+     * different ABI fingerprint than the one the <code>Script</code> was
+     * built against (see {@link PackageStore#getAbiDependencies(String)}).
+     * When fingerprints are not known, as for packages built by older
+     * versions of LFScript and for groups, the <code>Script</code> is always
+     * rebuilt. Without any fingerprints in <code>store</code>, this returns
+     * the same as {@link #getDependentOn(Set)}.
+     * <p>
+     * Before the packages in <code>names</code> have been rebuilt, their new
+     * fingerprints are not known yet, so this returns everything depending on
+     * them. When building in order, {@link BuildPlan#next(PackageStore)}
+     * makes the same decision for every package once its dependencies have
+     * been rebuilt, and skips those that turn out not to be affected.
+     *
+     * @throws IllegalArgumentException if an entry in <code>names</code> is
+     *         not a valid identifier.
+     */
+    public Set<String> getDependentOn(final Set<String> names,
+            PackageStore store) {
+        Set<String> ret = new TreeSet<String>();
+        boolean[] start = new boolean[this.graph.size()];
+
+        for (String name : names) {
+            String unq = Script.getUnqualifiedName(name);
             /* throws IllegalArgumentException if name is not valid */
+
+            ret.add(unq);
+
+            int id = this.graph.getId(unq);
+            if (id != -1) {
+                start[id] = true;
+            }
         }
 
-        /*
-         * Add any script that depends on any name from 'toRemove' to the
-         * 'toRemove' set.
-         */
-        Set<Script> scripts = super.getScripts();
-
-        int listSize = 0;
-        while (listSize != toRemove.size()) {
-            listSize = toRemove.size();
-
-            checkScripts:
-            for (Script s : scripts) {
-                Set<String> deps = s.getDependencies();
-                for (String dep : deps) {
-                    for (String rm : toRemove) {
-                        if (dep.equals(rm)) {
-                            toRemove.add(s.getUnqualifiedName());
-                            continue checkScripts;
-                        }
+        /* Dependencies always have a lower ID */
+        boolean[] rebuild = new boolean[start.length];
+        for (int id = 0; id < start.length; id++) {
+            if (start[id]) {
+                continue;
+            }
+
+            String qlf = this.graph.getName(id);
+            Map<String, String> builtAgainst = null;
+
+            for (int i = 0; i < this.graph.getDependencyCount(id); i++) {
+                int dep = this.graph.getDependency(id, i);
+
+                if (rebuild[dep]) {
+                    rebuild[id] = true;
+                } else if (start[dep]) {
+                    String depQlf = this.graph.getName(dep);
+
+                    if (builtAgainst == null) {
+                        builtAgainst = store.getAbiDependencies(qlf);
                     }
+
+                    String fingerprint = store.getAbiFingerprint(depQlf);
+                    rebuild[id] = builtAgainst == null ||
+                            fingerprint == null ||
+                            !store.isBuiltSince(depQlf,
+                                    super.getSearchIndex()) ||
+                            !fingerprint.equals(builtAgainst.get(
+                                    Script.getUnqualifiedName(depQlf)));
+                }
+
+                if (rebuild[id]) {
+                    ret.add(Script.getUnqualifiedName(qlf));
+                    break;
                 }
             }
         }
 
-        return toRemove;
+        return ret;
+    }
+
+    /**
+     * Returns the names returned by {@link #getDependentOn(Set)}, grouped by
+     * their distance to <code>names</code>.
+     * <p>
+     * The first <code>Set</code> contains the unqualified names of
+     * <code>names</code> itself, the second those of the <code>Script</code>s
+     * directly depending on them, and so on. Every name is listed only once,
+     * in the first <code>Set</code> it is found in.
+     *
+     * @throws IllegalArgumentException if an entry in <code>names</code> is
+     *         not a valid identifier.
+     */
+    public List<Set<String>> getDependentLevels(final Set<String> names) {
+        Set<String> first = new TreeSet<String>();
+        for (String name : names) {
+            first.add(Script.getUnqualifiedName(name));
+            /* throws IllegalArgumentException if name is not valid */
+        }
+
+        List<Set<String>> levels = new ArrayList<Set<String>>();
+        if (first.isEmpty()) {
+            return levels;
+        }
+
+        int[] start = new int[first.size()];
+        int count = 0;
+        for (String unq : first) {
+            int id = this.graph.getId(unq);
+            if (id != -1) {
+                start[count++] = id;
+            }
+        }
+
+        int[] ids = new int[count];
+        System.arraycopy(start, 0, ids, 0, count);
+
+        levels.add(first);
+
+        int[][] found = this.graph.getDependentLevels(ids);
+        for (int i = 1; i < found.length; i++) {
+            Set<String> level = new TreeSet<String>();
+            for (int id : found[i]) {
+                level.add(Script.getUnqualifiedName(this.graph.getName(id)));
+            }
+            levels.add(level);
+        }
+
+        return levels;
     }
 
     /**
@@ -0,0 +1,144 @@
+/*
+ * - PackageKeys.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * Identifies the inputs of every package that can be built from the scripts
+ * loaded by a <code>DynamicScriptLoader</code>.
+ * <p>
+ * The key of a package is a SHA-1 hash of its normalised script, together
+ * with the names and keys of all of its dependencies. Because the key of a
+ * dependency covers its own dependencies in turn, a key changes whenever
+ * anything in the dependency tree below the package changes, and only then.
+ * <p>
+ * Normalising a script removes the comment block at its top (the
+ * interpreter line, where it came from and its license), so that editing
+ * that does not cause packages to be rebuilt. Everything after it is kept as
+ * it is, as lines starting with <code>#</code> further down may well be
+ * part of a file the script writes.
+ */
+public class PackageKeys {
+    private final ScriptGraph graph;
+    private final String[] keys;
+
+    /**
+     * Computes the keys for all scripts loaded by <code>loader</code>.
+     *
+     * @throws IOException if a script can not be read.
+     */
+    public PackageKeys(DynamicScriptLoader loader) throws IOException {
+        this.graph = loader.getGraph();
+        this.keys = new String[this.graph.size()];
+
+        Sha1Digest digest = new Sha1Digest();
+
+        /* Dependencies always have a lower ID */
+        for (int id = 0; id < this.keys.length; id++) {
+            String qlf = this.graph.getName(id);
+
+            File script = loader.getSearchIndex().getFile(qlf);
+
+            digest.reset();
+            digest.update(normalise(script).getBytes("UTF-8"));
+
+            Set<String> deps = new TreeSet<String>();
+            for (int i = 0; i < this.graph.getDependencyCount(id); i++) {
+                int dep = this.graph.getDependency(id, i);
+                deps.add(this.graph.getName(dep) + " " + this.keys[dep]);
+            }
+
+            for (String dep : deps) {
+                digest.update(("\n" + dep).getBytes("UTF-8"));
+            }
+
+            this.keys[id] = toHex(digest.digest());
+        }
+    }
+
+    /**
+     * Returns the key of the package for the script with the qualified name
+     * <code>qlf</code>.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> was not loaded.
+     */
+    public String getKey(String qlf) {
+        int id = this.graph.getId(Script.getUnqualifiedName(qlf));
+
+        if (id == -1 || !this.graph.getName(id).equals(qlf)) {
+            throw new IllegalArgumentException(qlf);
+        }
+
+        return this.keys[id];
+    }
+
+    /*
+     * Returns the contents of 'file' without the empty and comment lines it
+     * starts with. Also used by ScriptManifest.
+     */
+    static String normalise(File file) throws IOException {
+        StringBuilder s = new StringBuilder();
+
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            boolean header = true;
+
+            String line = null;
+            while ((line = r.readLine()) != null) {
+                if (header) {
+                    String trimmed = line.trim();
+                    if (trimmed.length() == 0 || trimmed.charAt(0) == '#') {
+                        continue;
+                    }
+                    header = false;
+                }
+
+                s.append(line).append('\n');
+            }
+        } finally {
+            r.close();
+        }
+
+        return s.toString();
+    }
+
+    /* Also used by ScriptManifest and PackageStore */
+    static String toHex(byte[] bytes) {
+        StringBuilder s = new StringBuilder();
+
+        for (byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xf, 16));
+            s.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return s.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * - PackageStore.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+/**
+ * An index of the package archives in a package directory.
+ * <p>
+ * A package directory has the same layout as a script directory: a
+ * subdirectory per repository, holding a package archive for every script
+ * that has been built. The archive for the script
+ * <code>blfs-13994/firefox</code> is <code>blfs-13994/firefox.txz</code>
+ * (or <code>.tgz</code>, for packages created by older versions of
+ * LFScript).
+ * <p>
+ * Next to an archive, a <code>.key</code> file may hold the
+ * {@link PackageKeys key} of the inputs the package was built from. A
+ * package whose key differs from the current one is out of date. Packages
+ * without a key file were built by an older version of LFScript, and are
+ * never considered out of date.
+ * <p>
+ * An <code>.abi</code> file describes the interface a package offers to
+ * the packages that are built against it: its shared library sonames,
+ * <code>pkg-config</code> versions and installed headers. Its
+ * <code>.abideps</code> file lists, for every dependency, the name and SHA-1
+ * checksum of the <code>.abi</code> file of the dependency as it was when
+ * the package was built. If the checksum of a rebuilt dependency is still
+ * the same, the package does not need to be rebuilt for it.
+ * <p>
+ * The index is created by listing every repository directory once, after
+ * which finding out whether a package has been built does not touch the
+ * file system. Packages added to the directory afterwards are not seen.
+ */
+public class PackageStore {
+    private final String packSearch;
+
+    /* Path of the archive, relative to packSearch, by qualified name */
+    private final Map<String, String> archives;
+
+    /* Paths of .key, .abi and .abideps files, relative to packSearch */
+    private final Set<String> metadata;
+
+    /**
+     * Constructs a new <code>PackageStore</code> for the packages in the
+     * <code>packSearch</code> directory. A directory that does not exist is
+     * treated as an empty one.
+     */
+    public PackageStore(String packSearch) {
+        this.packSearch = packSearch;
+        this.archives = new HashMap<String, String>();
+        this.metadata = new HashSet<String>();
+
+        String[] repos = (new File(packSearch)).list();
+        if (repos == null) {
+            return;
+        }
+
+        for (String repo : repos) {
+            String[] files = (new File(packSearch, repo)).list();
+            if (files == null) {
+                continue;
+            }
+
+            for (String file : files) {
+                if (file.endsWith(".key") || file.endsWith(".abi") ||
+                        file.endsWith(".abideps")) {
+                    this.metadata.add(repo + "/" + file);
+                    continue;
+                } else if (!file.endsWith(".txz") && !file.endsWith(".tgz")) {
+                    continue;
+                }
+
+                String qlf = repo + "/" +
+                        file.substring(0, file.length() - 4);
+
+                /* Prefer .txz over .tgz */
+                if (file.endsWith(".txz") || !this.archives.containsKey(qlf)) {
+                    this.archives.put(qlf, repo + "/" + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a package archive exists for the script with the
+     * qualified name <code>qlf</code>.
+     */
+    public boolean isBuilt(String qlf) {
+        return this.archives.containsKey(qlf);
+    }
+
+    /**
+     * Returns whether a package archive exists for the script with the
+     * qualified name <code>qlf</code>, which is not out of date. It is out of
+     * date if its key file holds a key other than <code>key</code>.
+     */
+    public boolean isCurrent(String qlf, String key) {
+        if (!this.isBuilt(qlf)) {
+            return false;
+        }
+
+        String built = this.getKey(qlf);
+
+        return built == null || built.equals(key);
+    }
+
+    /**
+     * Returns the key the package for the script with the qualified name
+     * <code>qlf</code> was built from, or <code>null</code> if it is not
+     * known.
+     */
+    public String getKey(String qlf) {
+        if (!this.metadata.contains(qlf + ".key")) {
+            return null;
+        }
+
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(
+                    new File(this.packSearch, qlf + ".key")));
+            try {
+                String line = r.readLine();
+
+                return line == null ? null : line.trim();
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the package for the script with the qualified name
+     * <code>qlf</code> was built after the script in the
+     * <code>scriptSearch</code> directory was last modified.
+     */
+    public boolean isBuiltSince(String qlf, ScriptSearch scriptSearch) {
+        File archive = this.getArchive(qlf);
+
+        return archive != null && archive.lastModified() >=
+                scriptSearch.getFile(qlf).lastModified();
+    }
+
+    /**
+     * Returns the SHA-1 checksum of the <code>.abi</code> file of the package
+     * for the script with the qualified name <code>qlf</code>, as a
+     * hexadecimal number, or <code>null</code> if there is none.
+     */
+    public String getAbiFingerprint(String qlf) {
+        if (!this.metadata.contains(qlf + ".abi")) {
+            return null;
+        }
+
+        Sha1Digest digest = new Sha1Digest();
+        try {
+            InputStream in = new FileInputStream(
+                    new File(this.packSearch, qlf + ".abi"));
+            try {
+                byte[] buffer = new byte[8192];
+                int read = 0;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return PackageKeys.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the ABI fingerprints (see {@link #getAbiFingerprint(String)})
+     * the package for the script with the qualified name <code>qlf</code>
+     * was built against, by the unqualified name of the dependency, or
+     * <code>null</code> if they are not known.
+     */
+    public Map<String, String> getAbiDependencies(String qlf) {
+        if (!this.metadata.contains(qlf + ".abideps")) {
+            return null;
+        }
+
+        Map<String, String> deps = new HashMap<String, String>();
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(
+                    new File(this.packSearch, qlf + ".abideps")));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length == 2) {
+                        deps.put(fields[0], fields[1]);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return deps;
+    }
+
+    /**
+     * Returns whether the package for the script with the qualified name
+     * <code>qlf</code> was built against the same interface of every package
+     * in <code>deps</code> (qualified names) as these offer now. This is not
+     * the case if any of the ABI fingerprints involved is not known (see
+     * {@link #getAbiFingerprint(String)} and
+     * {@link #getAbiDependencies(String)}).
+     */
+    public boolean isCompatible(String qlf, List<String> deps) {
+        Map<String, String> builtAgainst = this.getAbiDependencies(qlf);
+        if (builtAgainst == null) {
+            return false;
+        }
+
+        for (String dep : deps) {
+            String fingerprint = this.getAbiFingerprint(dep);
+            if (fingerprint == null || !fingerprint.equals(
+                    builtAgainst.get(Script.getUnqualifiedName(dep)))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the package archive for the script with the qualified name
+     * <code>qlf</code>, or <code>null</code> if it has not been built.
+     */
+    public File getArchive(String qlf) {
+        String file = this.archives.get(qlf);
+
+        if (file == null) {
+            return null;
+        }
+
+        return new File(this.packSearch, file);
+    }
+
+    /**
+     * Returns the qualified names of all scripts for which a package archive
+     * exists, in alphabetical order.
+     */
+    public Set<String> getBuilt() {
+        return new TreeSet<String>(this.archives.keySet());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * - ResidentLoader.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps a <code>DynamicScriptLoader</code> for a long running process, such
+ * as the <code>dep</code> daemon, and keeps it up to date with the scripts on
+ * disk.
+ * <p>
+ * Every time the loader is asked for, the modification times and sizes of
+ * the loaded scripts and of the script and repository directories are
+ * compared with those seen before. Unless something changed, the same
+ * loader is returned.
+ * A script that has been modified is parsed again on its own. As long as its
+ * dependencies stay the same, the graph is not affected and is kept. When
+ * they do change, only the edges of that script are replaced, and of the
+ * levels computed before only those of the script and of the scripts
+ * depending on it are computed again; the building order is kept, which
+ * stays valid but may differ from that of a new load. Only when a changed
+ * script now needs a script that was not loaded or is built after it, no
+ * longer needs a script nothing else needs, or scripts are added to or
+ * removed from a repository, are the scripts loaded again, taking
+ * everything that did not change from the <code>ScriptCache</code>.
+ * <p>
+ * The file system is polled rather than watched, as the Java VM LFScript
+ * runs on has no <code>WatchService</code>. This costs one
+ * <code>stat</code> per loaded script for every call.
+ */
+public class ResidentLoader {
+    private final Set<String> names;
+    private final String search;
+    private final List<String> depLevels;
+    private final ScriptCache cache;
+    private final int threads;
+
+    private DynamicScriptLoader loader;
+    private ScriptSearch index;
+
+    /* What the loaded scripts and repositories looked like, by position */
+    private String[] scripts;
+    private long[] stamps;
+    private File[] dirs;
+    private long[] dirStamps;
+
+    /**
+     * Constructs a new <code>ResidentLoader</code> for the scripts named in
+     * <code>names</code>, with the same arguments as
+     * {@link DynamicScriptLoader#DynamicScriptLoader(Set, String, List,
+     * ScriptCache, int)}. Nothing is loaded until {@link #getLoader()} is
+     * called.
+     */
+    public ResidentLoader(Set<String> names, String search,
+            List<String> depLevels, ScriptCache cache, int threads) {
+        this.names = new TreeSet<String>(names);
+        this.search = search;
+        this.depLevels = new ArrayList<String>(depLevels);
+        this.cache = cache;
+        this.threads = threads;
+    }
+
+    /**
+     * Returns a loader for the current contents of the script directory.
+     *
+     * @throws IllegalArgumentException if the names this
+     *         <code>ResidentLoader</code> was constructed with are not valid
+     *         (see <code>DynamicScriptLoader</code>).
+     * @throws ScriptLoaderException if there are problems constructing
+     *         <code>Script</code>s.
+     */
+    public synchronized DynamicScriptLoader getLoader()
+            throws ScriptLoaderException {
+        if (this.loader != null && this.isCurrent()) {
+            return this.loader;
+        }
+
+        /* Forget the old loader first, in case loading fails */
+        this.loader = null;
+
+        DynamicScriptLoader loader = new DynamicScriptLoader(this.names,
+                this.search, this.depLevels, this.cache, this.threads);
+
+        this.index = loader.getSearchIndex();
+
+        List<String> order = loader.getBuildOrder();
+        this.scripts = order.toArray(new String[order.size()]);
+        this.stamps = new long[this.scripts.length * 2];
+        for (int i = 0; i < this.scripts.length; i++) {
+            this.stamp(i);
+        }
+
+        /* Every script directory, and the repositories in it */
+        List<File> dirs = new ArrayList<File>();
+        for (String root : this.index.getRoots()) {
+            dirs.add(new File(root));
+
+            File[] repos = (new File(root)).listFiles();
+            if (repos != null) {
+                dirs.addAll(Arrays.asList(repos));
+            }
+        }
+        this.dirs = dirs.toArray(new File[dirs.size()]);
+        this.dirStamps = new long[this.dirs.length];
+        for (int i = 0; i < this.dirs.length; i++) {
+            this.dirStamps[i] = this.dirs[i].lastModified();
+        }
+
+        this.loader = loader;
+
+        return loader;
+    }
+
+    /*
+     * Returns whether the loader matches the script directory, after
+     * replacing the scripts that have been modified if that can be done
+     * without loading them all again. Used only by getLoader().
+     */
+    private boolean isCurrent() {
+        for (int i = 0; i < this.dirs.length; i++) {
+            if (this.dirs[i].lastModified() != this.dirStamps[i]) {
+                return false;
+            }
+        }
+
+        boolean reparsed = false;
+        for (int i = 0; i < this.scripts.length; i++) {
+            File f = this.index.getFile(this.scripts[i]);
+            if (f.lastModified() == this.stamps[i * 2] &&
+                    f.length() == this.stamps[i * 2 + 1]) {
+                continue;
+            }
+
+            Script script = null;
+            try {
+                script = new Script(this.scripts[i], this.index,
+                        this.depLevels, true);
+            } catch (ScriptNotFoundException e) {
+                return false;
+            } catch (ScriptParserException e) {
+                return false;
+            }
+
+            Script loaded = this.loader.getScript(
+                    script.getUnqualifiedName());
+            boolean same = script.isGroup() == loaded.isGroup() &&
+                    script.getCpus() == loaded.getCpus() &&
+                    script.getMemory() == loaded.getMemory();
+
+            for (String depLevel : this.depLevels) {
+                same = same && script.getDependencies(depLevel).equals(
+                        loaded.getDependencies(depLevel));
+            }
+
+            if (!same) {
+                DynamicScriptLoader replaced = this.loader.replace(script);
+                if (replaced == null) {
+                    return false;
+                }
+                this.loader = replaced;
+            }
+
+            if (this.cache != null) {
+                this.cache.putScript(script, this.index, this.depLevels);
+                reparsed = true;
+            }
+            this.stamp(i);
+        }
+
+        if (reparsed) {
+            try {
+                this.cache.save(this.index);
+            } catch (IOException e) {
+                /* A cache that can not be written is not a problem */
+            }
+        }
+
+        return true;
+    }
+
+    /* Used only by getLoader() and isCurrent() */
+    private void stamp(int i) {
+        File f = this.index.getFile(this.scripts[i]);
+
+        this.stamps[i * 2] = f.lastModified();
+        this.stamps[i * 2 + 1] = f.length();
+    }
+}
@@ -25,11 +25,17 @@
 package org.lfscript.buildmgr;
 
 import java.util.Set;
+import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
 import java.io.File;
-import java.io.BufferedReader;
+import java.io.Reader;
 import java.io.FileReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
 /**
@@ -43,8 +49,11 @@ import java.io.IOException;
  * @version 2011-04-04
  */
 public class Script {
+    private final Map<String, Set<String>> levels;
     private final Set<String> dependencies;
     private final boolean group;
+    private final int cpus;
+    private final long memory;
     private final String name;
 
     /**
@@ -61,111 +70,310 @@ public class Script {
      */
     public Script(String qlf, String search, List<String> depLevels)
             throws ScriptNotFoundException, ScriptParserException {
-        this.name = qlf;
+        this(qlf, search, depLevels, false);
+    }
+
+    /**
+     * Constructs a new <code>Script</code> instance like
+     * {@link #Script(String, String, List)}. If <code>headerOnly</code> is
+     * <code>true</code>, the file is only read up to the first shell
+     * function definition (such as <code>installation() {</code>). Variables
+     * assigned after that point are ignored.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not a
+     *         qualified name.
+     * @throws ScriptNotFoundException if no script named <code>qlf</code> is
+     *         found in the <code>search</code> directory.
+     * @throws ScriptParserException if the selected file could not be parsed
+     *         correctly.
+     */
+    public Script(String qlf, String search, List<String> depLevels,
+            boolean headerOnly)
+            throws ScriptNotFoundException, ScriptParserException {
+        this(qlf, ScriptSearch.index(search), depLevels, headerOnly);
+    }
 
-        String contents = Script.loadTextFile(new File(search, qlf));
+    /**
+     * Constructs a new <code>Script</code> instance like
+     * {@link #Script(String, String, List, boolean)}, but finds the file
+     * through the index <code>search</code> instead of listing the search
+     * directory again.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not a
+     *         qualified name.
+     * @throws ScriptNotFoundException if no script named <code>qlf</code> is
+     *         found in the <code>search</code> directory.
+     * @throws ScriptParserException if the selected file could not be parsed
+     *         correctly.
+     */
+    public Script(String qlf, ScriptSearch search, List<String> depLevels,
+            boolean headerOnly)
+            throws ScriptNotFoundException, ScriptParserException {
+        this.name = qlf;
 
         if (!Script.isQualifiedName(qlf)) {
             throw new IllegalArgumentException(qlf);
         }
 
-        if (contents == null) {
-           throw new ScriptNotFoundException(qlf);
+        /* Collect the names of all variables of interest */
+        Set<String> names = new HashSet<String>();
+        for (String depLevel : depLevels) {
+            names.add(depLevel.toUpperCase());
         }
+        names.add("TAGS");
 
-        /* Create dependency list */
+        Map<String, List<String>> vars = Script.readVariables(qlf,
+                search.getFile(qlf), names, headerOnly);
+
+        /* Create dependency lists */
+        this.levels = new TreeMap<String, Set<String>>();
         this.dependencies = new TreeSet<String>();
 
         for (String depLevel : depLevels) {
-            String[] occur = contents.split(
-                    depLevel.toUpperCase()+"=\"");
-            if (occur.length == 2) {
-                String[] dependsArr = occur[1].split("\"");
-
-                if (dependsArr != null && dependsArr.length > 0) {
-                    String requires = dependsArr[0];
-
-                    requires = requires.replace('\t', ' ');
-                    requires = requires.replace('\n', ' ');
-                    requires = requires.replace('\u000B', ' ');
-                    requires = requires.replace('\f', ' ');
-                    requires = requires.replace('\r', ' ');
-                    while (requires.indexOf("  ") > -1) {
-                        requires = requires.replaceFirst("  ", " ");
-                    }
+            Set<String> level = new TreeSet<String>();
+            this.levels.put(depLevel.toUpperCase(), level);
 
-                    String[] deps = null;
-                    if (requires.indexOf(" ") > -1) {
-                        deps = requires.split(" ");
-                    } else {
-                        deps = new String[] { requires };
-                    }
-
-                    for (String dep : deps) {
-                        if (Script.isUnqualifiedName(dep)) {
-                            this.dependencies.add(dep);
-                        } else {
-                            throw new ScriptParserException(qlf, "Dependency '" +
-                                    dep + "' is not an unqualified name.");
-                        }
-                    }
+            List<String> deps = vars.get(depLevel.toUpperCase());
+            if (deps == null) {
+                continue;
+            }
 
+            for (String dep : deps) {
+                if (Script.isUnqualifiedName(dep)) {
+                    level.add(dep);
+                    this.dependencies.add(dep);
                 } else {
-                    throw new ScriptParserException(qlf,
-                            "Unterminated REQUIRES variable.");
+                    throw new ScriptParserException(qlf, "Dependency '" +
+                            dep + "' is not an unqualified name.");
                 }
-            } else if (occur.length > 2) {
-                throw new ScriptParserException(qlf,
-                        "Multiple REQUIRES variables detected.");
             }
         }
 
         /* Parse tags */
         boolean group = false;
-        String needle = "TAGS=\"";
-        if(contents.indexOf(needle) > -1) {
-            String ctags = contents.split(needle)[1].split("\"")[0];
-
-            ctags = ctags.replace('\t', ' ');
-            ctags = ctags.replace('\n', ' ');
-            ctags = ctags.replace('\u000B', ' ');
-            ctags = ctags.replace('\f', ' ');
-            ctags = ctags.replace('\r', ' ');
-            while (ctags.indexOf("  ") > -1) {
-                ctags = ctags.replaceFirst("  ", " ");
-            }
-
-            String[] tags = null;
-            if (ctags.indexOf(" ") > -1) {
-                tags = ctags.split(" ");
-            } else {
-                tags = new String[] { ctags };
-            }
-
+        int cpus = 1;
+        long memory = 0;
+        List<String> tags = vars.get("TAGS");
+        if (tags != null) {
             for (String tag : tags) {
-                if (tag.toLowerCase().equals("group")) {
+                String lower = tag.toLowerCase();
+
+                if (lower.equals("group")) {
                     group = true;
+                } else if (lower.startsWith("cpu:")) {
+                    try {
+                        cpus = Integer.parseInt(lower.substring(4));
+                    } catch (NumberFormatException e) {
+                        cpus = -1;
+                    }
+                    if (cpus < 1) {
+                        throw new ScriptParserException(qlf, "Invalid " +
+                                "number of processors in tag '" + tag + "'.");
+                    }
+                } else if (lower.startsWith("mem:")) {
+                    memory = Script.parseMemory(lower.substring(4));
+                    if (memory < 0) {
+                        throw new ScriptParserException(qlf, "Invalid " +
+                                "amount of memory in tag '" + tag + "'.");
+                    }
                 }
             }
         }
         this.group = group;
+        this.cpus = cpus;
+        this.memory = memory;
+    }
+
+    /**
+     * Constructs a new <code>Script</code> instance from previously parsed
+     * data, without accessing the file system.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not a
+     *         qualified name.
+     *
+     * @see ScriptCache
+     */
+    Script(String qlf, Map<String, Set<String>> levels, boolean group) {
+        this(qlf, levels, group, 1, 0);
+    }
+
+    /**
+     * Constructs a new <code>Script</code> instance from previously parsed
+     * data, like {@link #Script(String, Map, boolean)}, which needs
+     * <code>cpus</code> processors and <code>memory</code> MiB of memory to
+     * build.
+     *
+     * @throws IllegalArgumentException if <code>qlf</code> is not a
+     *         qualified name.
+     *
+     * @see ScriptCache
+     */
+    Script(String qlf, Map<String, Set<String>> levels, boolean group,
+            int cpus, long memory) {
+        if (!Script.isQualifiedName(qlf)) {
+            throw new IllegalArgumentException(qlf);
+        }
+
+        this.name = qlf;
+        this.levels = new TreeMap<String, Set<String>>();
+        this.dependencies = new TreeSet<String>();
+        this.group = group;
+        this.cpus = cpus;
+        this.memory = memory;
+
+        for (String depLevel : levels.keySet()) {
+            Set<String> level = new TreeSet<String>(levels.get(depLevel));
+            this.levels.put(depLevel.toUpperCase(), level);
+            this.dependencies.addAll(level);
+        }
     }
 
-    private static String loadTextFile(File file) {
-        String contents = new String();
-        String line = null;
+    /*
+     * Reads 'file' in a single pass and returns the whitespace separated
+     * words of every variable in 'names' which is assigned a double quoted
+     * value (NAME="word1 word2 ..."). Variables that are not assigned are
+     * absent from the returned Map. Only the first assignment of TAGS is
+     * used; assigning any other variable more than once is an error.
+     *
+     * If 'headerOnly' is true, reading stops at the first line that starts
+     * a function definition (NAME() or }; NAME()).
+     *
+     * Used only by the constructor.
+     */
+    private static Map<String, List<String>> readVariables(String qlf,
+            File file, Set<String> names, boolean headerOnly)
+            throws ScriptNotFoundException, ScriptParserException {
+
+        Map<String, List<String>> vars = new HashMap<String, List<String>>();
+
+        Reader r = null;
+        try {
+            r = new FileReader(file);
+        } catch (FileNotFoundException e) {
+            throw new ScriptNotFoundException(qlf);
+        }
 
+        final int OUTSIDE = 0;  /* Between assignments */
+        final int ASSIGN = 1;   /* Right after 'NAME=' */
+        final int VALUE = 2;    /* Inside the quoted value */
+        final int PAREN = 3;    /* Right after 'NAME(' at the start of a line */
+
+        int state = OUTSIDE;
+        boolean lineStart = true;
+        boolean inIdent = false;
+        boolean identAtLineStart = false;
+        boolean escaped = false;
+        StringBuilder ident = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        String var = null;
+        List<String> words = null; /* null if 'var' is to be skipped */
+
+        char[] buf = new char[8192];
         try {
-            BufferedReader r = new BufferedReader(new FileReader(file));
-            while((line = r.readLine()) != null) {
-                contents += line + "\n";
+            int len = 0;
+            reading:
+            while ((len = r.read(buf)) != -1) {
+                for (int i = 0; i < len; i++) {
+                    char c = buf[i];
+
+                    if (state == VALUE) {
+                        if (escaped) {
+                            escaped = false;
+                            if (words != null) {
+                                word.append(c);
+                            }
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"' || Character.isWhitespace(c)) {
+                            if (words != null && word.length() > 0) {
+                                words.add(word.toString());
+                                word.setLength(0);
+                            }
+
+                            if (c == '"') {
+                                state = OUTSIDE;
+                            }
+                        } else if (words != null) {
+                            word.append(c);
+                        }
+
+                        continue;
+                    }
+
+                    if (state == ASSIGN) {
+                        state = OUTSIDE;
+
+                        if (c == '"') {
+                            state = VALUE;
+                            words = null;
+
+                            if (!names.contains(var)) {
+                                /* Skip this value */
+                            } else if (!vars.containsKey(var)) {
+                                words = new ArrayList<String>();
+                                vars.put(var, words);
+                            } else if (!var.equals("TAGS")) {
+                                throw new ScriptParserException(qlf,
+                                        "Multiple " + var +
+                                        " variables detected.");
+                            }
+
+                            continue;
+                        }
+                    }
+
+                    if (state == PAREN) {
+                        state = OUTSIDE;
+
+                        if (c == ')') {
+                            /* The header ends at the first function */
+                            break reading;
+                        }
+                    }
+
+                    if (Character.isLetterOrDigit(c) || c == '_') {
+                        if (!inIdent) {
+                            ident.setLength(0);
+                            inIdent = true;
+                            identAtLineStart = lineStart;
+                        }
+                        ident.append(c);
+                        lineStart = false;
+                    } else {
+                        if (inIdent && c == '=') {
+                            state = ASSIGN;
+                            var = ident.toString();
+                        } else if (inIdent && c == '(' && headerOnly &&
+                                identAtLineStart) {
+                            state = PAREN;
+                        }
+                        inIdent = false;
+
+                        if (c == '\n') {
+                            lineStart = true;
+                        } else if (!Character.isWhitespace(c) && c != '}' &&
+                                c != ';') {
+                            lineStart = false;
+                        }
+                    }
+                }
             }
-            r.close();
         } catch (IOException e) {
-            return null;
+            throw new ScriptNotFoundException(qlf);
+        } finally {
+            try {
+                r.close();
+            } catch (IOException e) {
+                /* Ignore, the file has been read */
+            }
         }
 
-        return contents;
+        if (state == VALUE && words != null) {
+            throw new ScriptParserException(qlf, "Unterminated " + var +
+                    " variable.");
+        }
+
+        return vars;
     }
 
     /** Returns a set of direct dependecies of this <code>Script</code>. */
@@ -177,10 +385,47 @@ public class Script {
         return deps;
     }
 
+    /**
+     * Returns a set of direct dependencies of this <code>Script</code> on
+     * the specified dependency level, or <code>null</code> if that level was
+     * not requested when this <code>Script</code> was constructed.
+     */
+    public Set<String> getDependencies(String depLevel) {
+        Set<String> level = this.levels.get(depLevel.toUpperCase());
+
+        if (level == null) {
+            return null;
+        }
+
+        Set<String> deps = new TreeSet<String>();
+
+        deps.addAll(level);
+
+        return deps;
+    }
+
     public boolean isGroup() {
         return this.group;
     }
 
+    /**
+     * Returns the number of processors building this <code>Script</code>
+     * keeps busy, as set by a <code>cpu:N</code> tag. Defaults to
+     * <code>1</code>.
+     */
+    public int getCpus() {
+        return this.cpus;
+    }
+
+    /**
+     * Returns the amount of memory (in MiB) building this <code>Script</code>
+     * takes, as set by a <code>mem:SIZE</code> tag (see
+     * {@link #parseMemory(String)}), or <code>0</code> if it is not known.
+     */
+    public long getMemory() {
+        return this.memory;
+    }
+
     public String getQualifiedName() {
         return this.name;
     }
@@ -189,6 +434,30 @@ public class Script {
         return Script.getUnqualifiedName(this.name);
     }
 
+    /**
+     * Returns the amount of memory in MiB described by <code>size</code>: a
+     * whole number, optionally followed by <code>M</code> (MiB, the default)
+     * or <code>G</code> (GiB), such as <code>512M</code> or <code>6G</code>.
+     * Returns <code>-1</code> if <code>size</code> is not valid.
+     */
+    public static long parseMemory(String size) {
+        long unit = 1;
+        if (size.endsWith("g") || size.endsWith("G")) {
+            unit = 1024;
+            size = size.substring(0, size.length() - 1);
+        } else if (size.endsWith("m") || size.endsWith("M")) {
+            size = size.substring(0, size.length() - 1);
+        }
+
+        try {
+            long amount = Long.parseLong(size);
+
+            return amount < 0 ? -1 : amount * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Returns whether or not the given <code>name</code> is a <i>valid</i>
      * identifier for <code>Script</code>s.
@@ -0,0 +1,303 @@
+/*
+ * - ScriptCache.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.StringTokenizer;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+
+/**
+ * Keeps the parsed contents of <code>Script</code>s between runs, so that
+ * only scripts which have been modified need to be parsed again.
+ * <p>
+ * Every entry is keyed by the qualified name of a script (its path relative
+ * to the search directory), the time it was last modified and its size. If
+ * either of the latter two differ from the script on disk, the entry is
+ * considered stale and is not used.
+ * <p>
+ * The cache is stored as a plain text file, one script per line. Problems
+ * reading or writing this file are never fatal; an unreadable cache is simply
+ * treated as an empty one.
+ * <p>
+ * One cache may be shared by several loaders, which may use it from
+ * different threads. Its methods are therefore synchronized.
+ */
+public class ScriptCache {
+    private static final String HEADER = "# LFClass script cache, version 2";
+
+    private final File file;
+    private final Map<String, Entry> entries;
+    private boolean modified;
+
+    /* The cached contents of a single script */
+    private static class Entry {
+        private final long lastModified;
+        private final long length;
+        private final boolean group;
+        private final int cpus;
+        private final long memory;
+        private final Map<String, Set<String>> levels;
+
+        private Entry(long lastModified, long length, boolean group,
+                int cpus, long memory) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.group = group;
+            this.cpus = cpus;
+            this.memory = memory;
+            this.levels = new TreeMap<String, Set<String>>();
+        }
+
+        private boolean matches(File script) {
+            return this.lastModified == script.lastModified() &&
+                    this.length == script.length();
+        }
+    }
+
+    /**
+     * Constructs a new <code>ScriptCache</code> and loads any entries
+     * previously saved to <code>file</code>.
+     */
+    public ScriptCache(File file) {
+        this.file = file;
+        this.entries = new HashMap<String, Entry>();
+        this.modified = false;
+
+        try {
+            this.load();
+        } catch (IOException e) {
+            /* Start with an empty cache */
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Returns the default location of the cache for scripts in the
+     * <code>search</code> directory. This is a file next to that directory,
+     * named after it with <code>.cache</code> appended. For a search path,
+     * the first directory in it is used.
+     */
+    public static File getDefaultFile(String search) {
+        File dir = (new File(ScriptSearch.getRoots(search)[0]))
+                .getAbsoluteFile();
+
+        return new File(dir.getParentFile(), dir.getName() + ".cache");
+    }
+
+    /**
+     * Returns a <code>Script</code> for the qualified name <code>qlf</code>
+     * in the <code>search</code> directory, constructed from the cache.
+     * <p>
+     * Returns <code>null</code> if there is no entry for the script, if the
+     * entry is stale, or if not all of the requested <code>depLevels</code>
+     * are present in the entry.
+     */
+    public synchronized Script getScript(String qlf, ScriptSearch search,
+            List<String> depLevels) {
+        Entry entry = this.entries.get(qlf);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.matches(search.getFile(qlf))) {
+            this.entries.remove(qlf);
+            this.modified = true;
+            return null;
+        }
+
+        Map<String, Set<String>> levels = new TreeMap<String, Set<String>>();
+        for (String depLevel : depLevels) {
+            Set<String> level = entry.levels.get(depLevel.toUpperCase());
+
+            if (level == null) {
+                return null;
+            }
+
+            levels.put(depLevel.toUpperCase(), level);
+        }
+
+        return new Script(qlf, levels, entry.group, entry.cpus,
+                entry.memory);
+    }
+
+    /**
+     * Stores the parsed contents of <code>script</code>, which has been
+     * loaded from the <code>search</code> directory. Dependency levels which
+     * are already cached for an unmodified script are kept.
+     */
+    public synchronized void putScript(Script script, ScriptSearch search,
+            List<String> depLevels) {
+        String qlf = script.getQualifiedName();
+        File f = search.getFile(qlf);
+
+        Entry entry = this.entries.get(qlf);
+        if (entry == null || !entry.matches(f)) {
+            entry = new Entry(f.lastModified(), f.length(), script.isGroup(),
+                    script.getCpus(), script.getMemory());
+            this.entries.put(qlf, entry);
+        }
+
+        for (String depLevel : depLevels) {
+            entry.levels.put(depLevel.toUpperCase(),
+                    script.getDependencies(depLevel));
+        }
+
+        this.modified = true;
+    }
+
+    /*
+     * Reads the cache file. Lines have the following tab separated fields:
+     * qualified name, last modified, length, group flag (0 or 1), number of
+     * processors, memory in MiB, followed by
+     * zero or more fields of the form LEVEL=dep1 dep2 ...
+     */
+    private void load() throws IOException {
+        if (!this.file.isFile()) {
+            return;
+        }
+
+        BufferedReader r = new BufferedReader(new FileReader(this.file));
+        try {
+            if (!HEADER.equals(r.readLine())) {
+                return;
+            }
+
+            String line = null;
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 6 ||
+                        !Script.isQualifiedName(fields[0])) {
+                    throw new IOException("Malformed cache entry: " + line);
+                }
+
+                Entry entry = null;
+                try {
+                    entry = new Entry(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3].equals("1"),
+                            Integer.parseInt(fields[4]),
+                            Long.parseLong(fields[5]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed cache entry: " + line);
+                }
+
+                for (int i = 6; i < fields.length; i++) {
+                    int eq = fields[i].indexOf('=');
+                    if (eq < 1) {
+                        throw new IOException("Malformed cache entry: " +
+                                line);
+                    }
+
+                    Set<String> level = new TreeSet<String>();
+                    StringTokenizer deps = new StringTokenizer(
+                            fields[i].substring(eq + 1), " ");
+                    while (deps.hasMoreTokens()) {
+                        level.add(deps.nextToken());
+                    }
+
+                    entry.levels.put(fields[i].substring(0, eq), level);
+                }
+
+                this.entries.put(fields[0], entry);
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Writes the cache to its file, if it has been modified since it was
+     * loaded. Entries for scripts that no longer exist in the
+     * <code>search</code> directory are dropped.
+     * <p>
+     * The cache is written to a temporary file with a unique name first,
+     * which then replaces the existing file. A concurrent reader therefore
+     * never sees a partially written cache, and processes saving the cache
+     * at the same time do not write to the same temporary file.
+     */
+    public synchronized void save(ScriptSearch search) throws IOException {
+        if (!this.modified) {
+            return;
+        }
+
+        /* A unique name, as other processes may be saving the same cache */
+        File tmp = File.createTempFile(this.file.getName() + ".", ".tmp",
+                this.file.getAbsoluteFile().getParentFile());
+        try {
+            Writer w = new BufferedWriter(new FileWriter(tmp));
+            try {
+                w.write(HEADER + "\n");
+
+                for (String qlf : new TreeSet<String>(
+                        this.entries.keySet())) {
+                    if (qlf.indexOf('\t') > -1 || qlf.indexOf('\n') > -1 ||
+                            !search.getFile(qlf).isFile()) {
+                        continue;
+                    }
+
+                    Entry entry = this.entries.get(qlf);
+                    w.write(qlf + "\t" + entry.lastModified + "\t" +
+                            entry.length + "\t" + (entry.group ? "1" : "0") +
+                            "\t" + entry.cpus + "\t" + entry.memory);
+
+                    for (String depLevel : entry.levels.keySet()) {
+                        w.write("\t" + depLevel + "=");
+
+                        boolean first = true;
+                        for (String dep : entry.levels.get(depLevel)) {
+                            w.write((first ? "" : " ") + dep);
+                            first = false;
+                        }
+                    }
+
+                    w.write("\n");
+                }
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (!tmp.renameTo(this.file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + this.file);
+        }
+
+        this.modified = false;
+    }
+}
@@ -0,0 +1,867 @@
+/*
+ * - ScriptGraph.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * A compact, immutable representation of the dependency graph between a
+ * number of <code>Script</code>s.
+ * <p>
+ * Every script is identified by an integer ID, which is its index in the
+ * <code>List</code> the graph was constructed from. The dependencies and
+ * dependents of every script are stored in flat arrays, so they can be
+ * iterated without creating any objects:
+ *<pre>{@code
+ *for (int i = 0; i < graph.getDependencyCount(id); i++) {
+ *    int dep = graph.getDependency(id, i);
+ *    ...
+ *}}
+ *</pre>
+ */
+final class ScriptGraph {
+    private final String[] names;
+    private final Map<String, Integer> ids;
+
+    /*
+     * Dependencies of 'id' are deps[depStart[id]] up to deps[depStart[id+1]].
+     * Set only by link().
+     */
+    private int[] depStart;
+    private int[] deps;
+
+    /* Likewise for the scripts depending on 'id' */
+    private int[] revStart;
+    private int[] revs;
+
+    /* The result of getLevels(), created on first use; guarded by 'this' */
+    private int[] levels;
+
+    /*
+     * Reachability labels from a depth first walk along the dependencies,
+     * created on first use. post[id] numbers the scripts in the order the
+     * walk finishes them. The scripts first reached through 'id' have the
+     * numbers treeStart[id] up to post[id], so 'id' depends on all of them.
+     * Everything 'id' depends on has a number from low[id] up to post[id],
+     * so 'id' depends on nothing outside that range.
+     */
+    private volatile int[] post;
+    private int[] treeStart;
+    private int[] low;
+
+    /*
+     * Scripts visited by the current search of reaches() or getClosure(), if
+     * equal to mark; guarded by 'this'
+     */
+    private int[] marks;
+    private int mark;
+
+    /**
+     * Constructs a new <code>ScriptGraph</code> for <code>scripts</code>.
+     * Dependencies on scripts which are not in <code>scripts</code> are
+     * left out.
+     */
+    ScriptGraph(List<Script> scripts) {
+        int size = scripts.size();
+
+        this.names = new String[size];
+        this.ids = new HashMap<String, Integer>();
+
+        for (int id = 0; id < size; id++) {
+            Script script = scripts.get(id);
+            this.names[id] = script.getQualifiedName();
+            this.ids.put(script.getUnqualifiedName(), id);
+        }
+
+        int[][] forward = new int[size][];
+        for (int id = 0; id < size; id++) {
+            Set<String> depNames = scripts.get(id).getDependencies();
+            int[] targets = new int[depNames.size()];
+            int count = 0;
+
+            for (String dep : depNames) {
+                Integer target = this.ids.get(dep);
+                if (target != null) {
+                    targets[count++] = target;
+                }
+            }
+
+            forward[id] = new int[count];
+            System.arraycopy(targets, 0, forward[id], 0, count);
+        }
+
+        this.link(forward);
+    }
+
+    /* Used only by replace() */
+    private ScriptGraph(ScriptGraph graph, int[][] forward) {
+        this.names = graph.names;
+        this.ids = graph.ids;
+
+        this.link(forward);
+    }
+
+    /*
+     * Stores the dependencies in 'forward', indexed by ID, in flat arrays,
+     * along with the reverse edges. Used only by the constructors.
+     */
+    private void link(int[][] forward) {
+        int size = forward.length;
+
+        int[] revCount = new int[size];
+        int edges = 0;
+        for (int[] targets : forward) {
+            for (int target : targets) {
+                revCount[target]++;
+            }
+            edges += targets.length;
+        }
+
+        this.depStart = new int[size + 1];
+        this.deps = new int[edges];
+        this.revStart = new int[size + 1];
+        this.revs = new int[edges];
+
+        for (int id = 0; id < size; id++) {
+            this.depStart[id + 1] = this.depStart[id] + forward[id].length;
+            System.arraycopy(forward[id], 0, this.deps, this.depStart[id],
+                    forward[id].length);
+
+            this.revStart[id + 1] = this.revStart[id] + revCount[id];
+        }
+
+        int[] revFill = new int[size];
+        for (int id = 0; id < size; id++) {
+            for (int dep : forward[id]) {
+                this.revs[this.revStart[dep] + revFill[dep]++] = id;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of this graph in which the script identified by
+     * <code>id</code> depends on the scripts in <code>targets</code> instead
+     * of on its current dependencies. Every ID in <code>targets</code> must
+     * be lower than <code>id</code>.
+     * <p>
+     * If the levels of this graph have been computed, those of the scripts
+     * not depending on <code>id</code> are taken over; only the levels of
+     * <code>id</code> and the scripts depending on it are computed again.
+     */
+    ScriptGraph replace(int id, int[] targets) {
+        int[][] forward = new int[this.names.length][];
+        for (int i = 0; i < forward.length; i++) {
+            if (i == id) {
+                forward[i] = targets.clone();
+            } else {
+                forward[i] = new int[this.getDependencyCount(i)];
+                System.arraycopy(this.deps, this.depStart[i], forward[i], 0,
+                        forward[i].length);
+            }
+        }
+
+        ScriptGraph graph = new ScriptGraph(this, forward);
+
+        int[] levels = null;
+        synchronized (this) {
+            levels = this.levels;
+        }
+
+        if (levels != null) {
+            levels = levels.clone();
+
+            /* Dependents have higher IDs, so their dependencies come first */
+            boolean[] changed = new boolean[levels.length];
+            for (int dependent = id; dependent < levels.length; dependent++) {
+                boolean affected = dependent == id;
+                for (int i = graph.depStart[dependent];
+                        !affected && i < graph.depStart[dependent + 1]; i++) {
+                    affected = changed[graph.deps[i]];
+                }
+                if (!affected) {
+                    continue;
+                }
+
+                changed[dependent] = true;
+                levels[dependent] = 0;
+                for (int i = graph.depStart[dependent];
+                        i < graph.depStart[dependent + 1]; i++) {
+                    levels[dependent] = Math.max(levels[dependent],
+                            levels[graph.deps[i]] + 1);
+                }
+            }
+
+            graph.levels = levels;
+        }
+
+        return graph;
+    }
+
+    /** Returns the number of scripts in this graph. */
+    int size() {
+        return this.names.length;
+    }
+
+    /**
+     * Returns the ID of the script with the unqualified name
+     * <code>unq</code>, or <code>-1</code> if it is not part of this graph.
+     */
+    int getId(String unq) {
+        Integer id = this.ids.get(unq);
+
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the qualified name of the script identified by ID. */
+    String getName(int id) {
+        return this.names[id];
+    }
+
+    /** Returns the number of direct dependencies of a script. */
+    int getDependencyCount(int id) {
+        return this.depStart[id + 1] - this.depStart[id];
+    }
+
+    /** Returns the ID of the <code>i</code>th dependency of a script. */
+    int getDependency(int id, int i) {
+        return this.deps[this.depStart[id] + i];
+    }
+
+    /** Returns the number of scripts directly depending on a script. */
+    int getDependentCount(int id) {
+        return this.revStart[id + 1] - this.revStart[id];
+    }
+
+    /**
+     * Returns the ID of the <code>i</code>th script directly depending on a
+     * script.
+     */
+    int getDependent(int id, int i) {
+        return this.revs[this.revStart[id] + i];
+    }
+
+    /**
+     * Returns the IDs of the script identified by <code>id</code> and of
+     * every script it (directly or indirectly) depends on, in ascending
+     * order. This takes time in proportion to the number of scripts and
+     * dependencies in the result, not to the size of the graph.
+     */
+    synchronized int[] getClosure(int id) {
+        int mark = this.nextMark();
+
+        /* The closure doubles as the list of scripts still to look at */
+        int[] closure = new int[16];
+        int count = 0;
+
+        closure[count++] = id;
+        this.marks[id] = mark;
+        for (int n = 0; n < count; n++) {
+            int current = closure[n];
+
+            for (int i = this.depStart[current];
+                    i < this.depStart[current + 1]; i++) {
+                int dep = this.deps[i];
+
+                if (this.marks[dep] != mark) {
+                    this.marks[dep] = mark;
+                    if (count == closure.length) {
+                        int[] larger = new int[count * 2];
+                        System.arraycopy(closure, 0, larger, 0, count);
+                        closure = larger;
+                    }
+                    closure[count++] = dep;
+                }
+            }
+        }
+
+        int[] sorted = new int[count];
+        System.arraycopy(closure, 0, sorted, 0, count);
+        ScriptGraph.sort(sorted);
+
+        return sorted;
+    }
+
+    /*
+     * Sorts 'ids' in ascending order, using heapsort, as the class library
+     * of Avian has no Arrays.sort(int[]). Used only by getClosure(int).
+     */
+    private static void sort(int[] ids) {
+        for (int i = ids.length / 2 - 1; i >= 0; i--) {
+            ScriptGraph.siftDown(ids, i, ids.length);
+        }
+
+        for (int end = ids.length - 1; end > 0; end--) {
+            int top = ids[0];
+            ids[0] = ids[end];
+            ids[end] = top;
+            ScriptGraph.siftDown(ids, 0, end);
+        }
+    }
+
+    /*
+     * Moves ids[i] down the heap in ids[0] up to ids[end], until it is not
+     * smaller than its children. Used only by sort().
+     */
+    private static void siftDown(int[] ids, int i, int end) {
+        int value = ids[i];
+
+        while (2 * i + 1 < end) {
+            int child = 2 * i + 1;
+            if (child + 1 < end && ids[child + 1] > ids[child]) {
+                child++;
+            }
+            if (value >= ids[child]) {
+                break;
+            }
+
+            ids[i] = ids[child];
+            i = child;
+        }
+
+        ids[i] = value;
+    }
+
+    /**
+     * Returns the IDs of the scripts identified by <code>start</code> and of
+     * every script they (directly or indirectly) depend on, in ascending
+     * order.
+     * <p>
+     * This method requires every script to have a higher ID than all of its
+     * dependencies.
+     */
+    int[] getClosure(int[] start) {
+        boolean[] needed = new boolean[this.names.length];
+        int max = -1;
+        for (int id : start) {
+            needed[id] = true;
+            max = Math.max(max, id);
+        }
+
+        int count = 0;
+        for (int id = max; id >= 0; id--) {
+            if (needed[id]) {
+                count++;
+                for (int i = this.depStart[id];
+                        i < this.depStart[id + 1]; i++) {
+                    needed[this.deps[i]] = true;
+                }
+            }
+        }
+
+        int[] closure = new int[count];
+        int n = 0;
+        for (int id = 0; id <= max; id++) {
+            if (needed[id]) {
+                closure[n++] = id;
+            }
+        }
+
+        return closure;
+    }
+
+    /**
+     * Returns, for every script, the length of the longest chain of
+     * dependencies below it. Scripts without dependencies are at level
+     * <code>0</code>; every other script is one level above its highest
+     * dependency.
+     * <p>
+     * This method requires every script to have a higher ID than all of its
+     * dependencies. The levels are computed only once per graph.
+     */
+    synchronized int[] getLevels() {
+        if (this.levels == null) {
+            int[] levels = new int[this.names.length];
+
+            for (int id = 0; id < levels.length; id++) {
+                for (int i = this.depStart[id];
+                        i < this.depStart[id + 1]; i++) {
+                    levels[id] = Math.max(levels[id],
+                            levels[this.deps[i]] + 1);
+                }
+            }
+
+            this.levels = levels;
+        }
+
+        return this.levels.clone();
+    }
+
+    /**
+     * Returns, for every script, the length of the critical path starting at
+     * it: its own weight plus the largest critical path of any script
+     * depending on it. This is the least amount of time needed to build a
+     * script and everything above it, no matter how many builds run at once.
+     * <p>
+     * This method requires every script to have a higher ID than all of its
+     * dependencies.
+     */
+    long[] getCriticalPaths(long[] weights) {
+        long[] paths = new long[this.names.length];
+
+        for (int id = paths.length - 1; id >= 0; id--) {
+            long longest = 0;
+            for (int i = this.revStart[id]; i < this.revStart[id + 1]; i++) {
+                longest = Math.max(longest, paths[this.revs[i]]);
+            }
+
+            paths[id] = weights[id] + longest;
+        }
+
+        return paths;
+    }
+
+    /**
+     * Returns the IDs of all scripts which (directly or indirectly) depend on
+     * any script in <code>start</code>, grouped by their distance to the
+     * nearest script in <code>start</code>. The first group is
+     * <code>start</code> itself, without duplicates.
+     */
+    int[][] getDependentLevels(int[] start) {
+        boolean[] visited = new boolean[this.names.length];
+        int[] queue = new int[this.names.length];
+        int tail = 0;
+
+        for (int id : start) {
+            if (!visited[id]) {
+                visited[id] = true;
+                queue[tail++] = id;
+            }
+        }
+
+        /* Breadth first; every level is a range of the queue */
+        int[] levelEnd = new int[this.names.length + 1];
+        int levels = 0;
+        int head = 0;
+
+        while (head < tail) {
+            int end = tail;
+
+            for (; head < end; head++) {
+                int current = queue[head];
+
+                for (int i = this.revStart[current];
+                        i < this.revStart[current + 1]; i++) {
+                    int dependent = this.revs[i];
+
+                    if (!visited[dependent]) {
+                        visited[dependent] = true;
+                        queue[tail++] = dependent;
+                    }
+                }
+            }
+
+            levelEnd[levels++] = end;
+        }
+
+        int[][] result = new int[levels][];
+        int begin = 0;
+        for (int level = 0; level < levels; level++) {
+            result[level] = new int[levelEnd[level] - begin];
+            System.arraycopy(queue, begin, result[level], 0,
+                    result[level].length);
+            begin = levelEnd[level];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns every group of scripts which (directly or indirectly) depend
+     * on each other, as a list of IDs. A script depending on itself forms a
+     * group of its own. Groups are found in a single pass over the graph,
+     * using Tarjan's strongly connected components algorithm.
+     */
+    int[][] getCycles() {
+        int size = this.names.length;
+
+        int[] index = new int[size];      /* 0 means not yet visited */
+        int[] low = new int[size];
+        int[] next = new int[size];       /* Next edge to follow */
+        boolean[] onStack = new boolean[size];
+
+        int[] stack = new int[size];      /* Scripts of unfinished groups */
+        int top = 0;
+        int[] path = new int[size];       /* The current depth first path */
+        int depth = 0;
+        int counter = 0;
+
+        List<int[]> cycles = new ArrayList<int[]>();
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != 0) {
+                continue;
+            }
+
+            index[root] = low[root] = ++counter;
+            next[root] = this.depStart[root];
+            stack[top++] = root;
+            onStack[root] = true;
+            path[depth++] = root;
+
+            while (depth > 0) {
+                int v = path[depth - 1];
+
+                if (next[v] < this.depStart[v + 1]) {
+                    int w = this.deps[next[v]++];
+
+                    if (index[w] == 0) {
+                        index[w] = low[w] = ++counter;
+                        next[w] = this.depStart[w];
+                        stack[top++] = w;
+                        onStack[w] = true;
+                        path[depth++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+
+                    continue;
+                }
+
+                /* All edges of 'v' have been followed */
+                depth--;
+                if (depth > 0) {
+                    int parent = path[depth - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+
+                if (low[v] != index[v]) {
+                    continue;
+                }
+
+                /* 'v' is the root of a group */
+                int begin = top;
+                do {
+                    onStack[stack[--begin]] = false;
+                } while (stack[begin] != v);
+
+                int[] group = new int[top - begin];
+                System.arraycopy(stack, begin, group, 0, group.length);
+                top = begin;
+
+                if (group.length > 1 || this.dependsOn(v, v)) {
+                    cycles.add(group);
+                }
+            }
+        }
+
+        return cycles.toArray(new int[cycles.size()][]);
+    }
+
+    /**
+     * Returns the shortest chain of dependencies that leads from the script
+     * identified by <code>start</code> back to itself, passing only through
+     * scripts in <code>group</code>. The chain starts with
+     * <code>start</code>, which is not repeated at the end.
+     * <p>
+     * Returns <code>null</code> if no such chain exists.
+     */
+    int[] getCycle(int start, int[] group) {
+        int size = this.names.length;
+
+        boolean[] member = new boolean[size];
+        for (int id : group) {
+            member[id] = true;
+        }
+
+        int[] parent = new int[size];
+        boolean[] visited = new boolean[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = start;
+        visited[start] = true;
+
+        while (head < tail) {
+            int v = queue[head++];
+
+            for (int i = this.depStart[v]; i < this.depStart[v + 1]; i++) {
+                int w = this.deps[i];
+
+                if (w == start) {
+
+                    /* Walk back to 'start' */
+                    int length = 1;
+                    for (int u = v; u != start; u = parent[u]) {
+                        length++;
+                    }
+
+                    int[] cycle = new int[length];
+                    for (int u = v; length > 0; u = parent[u]) {
+                        cycle[--length] = u;
+                    }
+
+                    return cycle;
+                }
+
+                if (member[w] && !visited[w]) {
+                    visited[w] = true;
+                    parent[w] = v;
+                    queue[tail++] = w;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether the script identified by <code>id</code> (directly or
+     * indirectly) depends on the one identified by <code>dep</code>.
+     * <p>
+     * The first call labels every script with three numbers, which takes
+     * linear time and space (see the fields of this class). Most
+     * questions are answered from the labels alone; the others by searching
+     * the dependencies of <code>id</code>, skipping every script the labels
+     * rule out. This method requires every script to have a higher ID than
+     * all of its dependencies.
+     */
+    boolean reaches(int id, int dep) {
+        if (!this.mayReach(id, dep)) {
+            return false;
+        }
+        if (this.treeStart[id] <= this.post[dep]) {
+            return true;
+        }
+
+        return this.search(id, dep);
+    }
+
+    /**
+     * Returns the shortest chain of dependencies from the script identified
+     * by <code>from</code> to the one identified by <code>to</code>. The
+     * chain starts with <code>from</code> and ends with <code>to</code>.
+     * <p>
+     * Returns <code>null</code> if <code>from</code> does not depend on
+     * <code>to</code>. This method requires every script to have a higher ID
+     * than all of its dependencies.
+     */
+    int[] getChain(int from, int to) {
+        if (from == to) {
+            return new int[] { from };
+        }
+
+        if (!this.mayReach(from, to)) {
+            return null;
+        }
+
+        int size = this.names.length;
+        int[] parent = new int[size];
+        boolean[] visited = new boolean[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = from;
+        visited[from] = true;
+
+        /* Skip scripts which can not lead to 'to' */
+        while (head < tail) {
+            int v = queue[head++];
+
+            for (int i = this.depStart[v]; i < this.depStart[v + 1]; i++) {
+                int w = this.deps[i];
+
+                if (w == to) {
+                    int length = 2;
+                    for (int u = v; u != from; u = parent[u]) {
+                        length++;
+                    }
+
+                    int[] chain = new int[length];
+                    chain[--length] = to;
+                    for (int u = v; length > 0; u = parent[u]) {
+                        chain[--length] = u;
+                    }
+
+                    return chain;
+                }
+
+                if (!visited[w] && this.mayReach(w, to)) {
+                    visited[w] = true;
+                    parent[w] = v;
+                    queue[tail++] = w;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Returns whether 'id' depends on 'dep', by searching the dependencies of
+     * 'id' that may lead to 'dep'. Used only by reaches().
+     */
+    private synchronized boolean search(int id, int dep) {
+        int mark = this.nextMark();
+
+        int[] stack = new int[16];
+        int size = 0;
+
+        stack[size++] = id;
+        this.marks[id] = mark;
+        while (size > 0) {
+            int v = stack[--size];
+
+            for (int i = this.depStart[v]; i < this.depStart[v + 1]; i++) {
+                int w = this.deps[i];
+
+                if (w == dep) {
+                    return true;
+                }
+
+                if (this.marks[w] != mark && this.mayReach(w, dep)) {
+                    this.marks[w] = mark;
+                    if (size == stack.length) {
+                        int[] larger = new int[size * 2];
+                        System.arraycopy(stack, 0, larger, 0, size);
+                        stack = larger;
+                    }
+                    stack[size++] = w;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Returns a value no script in 'marks' is marked with yet, creating
+     * 'marks' if needed. The caller must hold the lock on this graph. Used by
+     * getClosure() and search().
+     */
+    private int nextMark() {
+        if (this.marks == null || this.mark == Integer.MAX_VALUE) {
+            this.marks = new int[this.names.length];
+            this.mark = 0;
+        }
+
+        return ++this.mark;
+    }
+
+    /*
+     * Returns false if the labels show that 'id' does not depend on 'dep'.
+     * If this returns true, 'id' may or may not depend on 'dep'. Used by
+     * reaches(), search() and getChain().
+     */
+    private boolean mayReach(int id, int dep) {
+        if (dep >= id) {
+            return false;
+        }
+
+        int[] post = this.post;
+        if (post == null) {
+            post = this.label();
+        }
+
+        return this.low[id] <= this.low[dep] && post[dep] <= post[id];
+    }
+
+    /*
+     * Creates the reachability labels, if that has not been done yet, and
+     * returns 'post'. 'post' is set last, so that the others are complete
+     * once it is seen. Used only by mayReach().
+     */
+    private synchronized int[] label() {
+        if (this.post != null) {
+            return this.post;
+        }
+
+        int size = this.names.length;
+        int[] post = new int[size];
+        int[] treeStart = new int[size];
+        int[] low = new int[size];
+        boolean[] visited = new boolean[size];
+
+        /* The walk, and where it is in the dependencies of every script */
+        int[] stack = new int[size];
+        int[] next = new int[size];
+        int depth = 0;
+        int count = 0;
+
+        /* Start from the top, so that few scripts are started from */
+        for (int root = size - 1; root >= 0; root--) {
+            if (visited[root]) {
+                continue;
+            }
+
+            visited[root] = true;
+            treeStart[root] = count;
+            low[root] = Integer.MAX_VALUE;
+            next[root] = this.depStart[root];
+            stack[depth++] = root;
+
+            while (depth > 0) {
+                int v = stack[depth - 1];
+
+                if (next[v] < this.depStart[v + 1]) {
+                    int w = this.deps[next[v]++];
+
+                    if (!visited[w]) {
+                        visited[w] = true;
+                        treeStart[w] = count;
+                        low[w] = Integer.MAX_VALUE;
+                        next[w] = this.depStart[w];
+                        stack[depth++] = w;
+                    } else {
+                        /* A dependency, so it has been finished already */
+                        low[v] = Math.min(low[v], low[w]);
+                    }
+                    continue;
+                }
+
+                post[v] = count++;
+                low[v] = Math.min(low[v], post[v]);
+                depth--;
+
+                if (depth > 0) {
+                    int parent = stack[depth - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+
+        this.low = low;
+        this.treeStart = treeStart;
+        this.post = post;
+
+        return post;
+    }
+
+    /* Returns whether 'id' directly depends on 'dep' */
+    private boolean dependsOn(int id, int dep) {
+        for (int i = this.depStart[id]; i < this.depStart[id + 1]; i++) {
+            if (this.deps[i] == dep) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -42,22 +42,62 @@ public abstract class ScriptLoader {
 
     private final Map<String, String> registeredNames;
     private final Map<String, Script> registeredScripts;
+    private final ScriptSearch searchIndex;
 
-    /** Constructs a new <code>ScriptLoader</code>. */
+    /**
+     * Constructs a new <code>ScriptLoader</code>.
+     * <p>
+     * The <code>search</code> directory is scanned once, here. Any scripts
+     * added to it afterwards will not be found by this instance. It may also
+     * be a search path of several directories, see
+     * <code>ScriptSearch</code>.
+     */
     public ScriptLoader(String search) {
-        this.search = search;
+        this(ScriptSearch.index(search));
+    }
+
+    /**
+     * Constructs a new <code>ScriptLoader</code> which finds its
+     * <code>Script</code>s through the index <code>search</code>.
+     */
+    public ScriptLoader(ScriptSearch search) {
+        this.search = search.getSearch();
         this.registeredNames = new HashMap<String, String>();
         this.registeredScripts = new HashMap<String, Script>();
+        this.searchIndex = search;
+    }
+
+    /**
+     * Constructs a new <code>ScriptLoader</code> with the same search
+     * directory and index as <code>loader</code>, and a copy of its
+     * registered names and <code>Script</code>s. The search directory is not
+     * scanned again.
+     */
+    protected ScriptLoader(ScriptLoader loader) {
+        this.search = loader.search;
+        this.registeredNames = new HashMap<String, String>(
+                loader.registeredNames);
+        this.registeredScripts = new HashMap<String, Script>(
+                loader.registeredScripts);
+        this.searchIndex = loader.searchIndex;
     }
 
     /**
-     * Returns the name of the directory which is used to search for
-     * <code>Script</code>s.
+     * Returns the name of the directory (or the search path) which is used
+     * to search for <code>Script</code>s.
      */
     public String getSearch() {
         return this.search;
     }
 
+    /**
+     * Returns the index of the search directory (or search path) which was
+     * created when this <code>ScriptLoader</code> was constructed.
+     */
+    public ScriptSearch getSearchIndex() {
+        return this.searchIndex;
+    }
+
     /**
      * Returns the <code>Script</code> associated with the unqualified name
      * specified by <code>unq</code>.
@@ -146,14 +186,42 @@ public abstract class ScriptLoader {
         this.registeredScripts.put(unq, script);
     }
 
+    /**
+     * Returns a <code>Set</code> with a qualified name for every file
+     * named <code>unq</code> in the subdirectories of the search directory.
+     * <p>
+     * Unlike {@link #getExistingNames(String, String)}, this method does not
+     * access the file system; it uses the index which was created when this
+     * <code>ScriptLoader</code> was constructed.
+     * <p>
+     * If no file is found, an empty <code>Set</code> is returned.
+     *
+     * @throws IllegalArgumentException if <code>unq</code> is not unqualified.
+     *
+     * @see #getRegisteredName(String)
+     * @see #registerName(String, String)
+     */
+    public Set<String> getExistingNames(String unq) {
+
+        /* Make sure the name specified is unqualified */
+        if (!Script.isUnqualifiedName(unq)) {
+            throw new IllegalArgumentException(unq);
+        }
+
+        return this.searchIndex.getNames(unq);
+    }
+
     /**
      * Returns a <code>Set</code> with a qualified name for every file
      * named <code>unq</code> in the subdirectories of <code>search</code>.
+     * Only the files in the repositories that come first are included, as
+     * described for <code>ScriptSearch</code>.
      * <p>
      * If no file is found, an empty <code>Set</code> is returned.
      *
      * @throws IllegalArgumentException if <code>unq</code> is not unqualified.
      *
+     * @see #getExistingNames(String)
      * @see #getRegisteredName(String)
      * @see #registerName(String, String)
      */
@@ -165,13 +233,28 @@ public abstract class ScriptLoader {
         }
 
         Set<String> list = new TreeSet<String>();
+        int best = Integer.MAX_VALUE;
 
         /* Find possible scripts with this name */
-        File[] dirs = (new File(search)).listFiles();
-        if (dirs != null) {
+        String[] roots = ScriptSearch.getRoots(search);
+        for (int root = 0; root < roots.length && list.isEmpty(); root++) {
+            File[] dirs = (new File(roots[root])).listFiles();
+            if (dirs == null) {
+                continue;
+            }
+
             for (File dir : dirs) {
                 File f = new File(dir, unq);
-                if (f.isFile() && f.canRead()) {
+                if (!f.isFile() || !f.canRead()) {
+                    continue;
+                }
+
+                int rank = ScriptSearch.getRank(root, dir.getName());
+                if (rank < best) {
+                    best = rank;
+                    list.clear();
+                }
+                if (rank == best) {
                     list.add(dir.getName() + "/" + unq);
                 }
             }
@@ -180,4 +263,3 @@ public abstract class ScriptLoader {
         return list;
     }
 }
-
@@ -49,6 +49,7 @@ public class ScriptLoaderException extends Exception {
     private Map<String, Set<String>> multiple;
     private Set<ScriptParserException> contents;
     private Set<String[]> circular;
+    private Set<Set<String>> circularGroups;
 
     /** Constructs a new <code>ScriptLoaderException</code> instance. */
     public ScriptLoaderException() {
@@ -57,6 +58,7 @@ public class ScriptLoaderException extends Exception {
         this.multiple = new TreeMap<String, Set<String>>();
         this.contents = new HashSet<ScriptParserException>();
         this.circular = new HashSet<String[]>();
+        this.circularGroups = new HashSet<Set<String>>();
     }
 
     /**
@@ -97,11 +99,20 @@ public class ScriptLoaderException extends Exception {
         return this.circular;
     }
 
+    /**
+     * Returns a <code>Set</code> of groups of names of scripts which
+     * (directly or indirectly) depend on each other. Every chain listed by
+     * {@link #getCircularDependencies()} lies within one of these groups.
+     */
+    public Set<Set<String>> getCircularGroups() {
+        return this.circularGroups;
+    }
+
     /** Returns whether or not problems have been reported to this instance. */
     public boolean hasEntries() {
         if (!this.notFound.isEmpty() || !this.nonsense.isEmpty() ||
                 !this.multiple.isEmpty() || !this.contents.isEmpty() ||
-                !this.circular.isEmpty()) {
+                !this.circular.isEmpty() || !this.circularGroups.isEmpty()) {
             return true;
         }
 
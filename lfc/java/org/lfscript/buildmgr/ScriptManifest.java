@@ -0,0 +1,178 @@
+/*
+ * - ScriptManifest.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package org.lfscript.buildmgr;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.PrintStream;
+
+/**
+ * The build relevant contents of every script in a script directory, at
+ * one point in time.
+ * <p>
+ * A script is identified by a SHA-1 hash of the script normalised the same
+ * way as for {@link PackageKeys}, so that editing the comment block at its
+ * top does not count as a change. Lines starting with <code>#</code> further
+ * down are part of the hash, as they may be content the script writes to a
+ * file. A manifest can be written to a file, one
+ * script per line:
+ *<pre>
+ *blfs-13994/atk 5c1bd1b6e2a0e1fd1e2cbd3e6bc0fa0a4e2a9e1b
+ *</pre>
+ * Comparing the manifest of a script directory before and after it is
+ * regenerated tells which scripts have changed. Regenerating scripts from a
+ * newer book also renames the repository directories, so scripts are
+ * matched by their unqualified name when their qualified name is not found.
+ */
+public class ScriptManifest {
+
+    /* Hash of the normalised script, by qualified name */
+    private final Map<String, String> hashes;
+
+    private ScriptManifest(Map<String, String> hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates a manifest of the scripts in the <code>search</code>
+     * directory, or search path (see <code>ScriptSearch</code>).
+     *
+     * @throws IOException if a script can not be read.
+     */
+    public static ScriptManifest create(String search) throws IOException {
+        Map<String, String> hashes = new TreeMap<String, String>();
+
+        Sha1Digest digest = new Sha1Digest();
+
+        ScriptSearch index = ScriptSearch.index(search);
+        for (String qlf : index.getQualifiedNames()) {
+            digest.reset();
+            digest.update(PackageKeys.normalise(index.getFile(qlf))
+                    .getBytes("UTF-8"));
+
+            hashes.put(qlf, PackageKeys.toHex(digest.digest()));
+        }
+
+        return new ScriptManifest(hashes);
+    }
+
+    /**
+     * Reads a manifest from <code>snapshot</code>. This is either a file
+     * written by {@link #write(PrintStream)}, or a script directory, of
+     * which a new manifest is created.
+     *
+     * @throws IOException if <code>snapshot</code> can not be read.
+     */
+    public static ScriptManifest load(File snapshot) throws IOException {
+        if (snapshot.isDirectory()) {
+            return ScriptManifest.create(snapshot.getPath());
+        }
+
+        Map<String, String> hashes = new TreeMap<String, String>();
+
+        BufferedReader r = new BufferedReader(new FileReader(snapshot));
+        try {
+            String line = null;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2 ||
+                        !Script.isQualifiedName(fields[0])) {
+                    throw new IOException("Malformed line in " + snapshot +
+                            ": " + line);
+                }
+
+                hashes.put(fields[0], fields[1]);
+            }
+        } finally {
+            r.close();
+        }
+
+        return new ScriptManifest(hashes);
+    }
+
+    /**
+     * Writes this manifest to <code>out</code>, in the format read by
+     * {@link #load(File)}.
+     */
+    public void write(PrintStream out) {
+        for (Map.Entry<String, String> entry : this.hashes.entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the qualified names of the scripts in this manifest which are
+     * not in <code>earlier</code>, or whose contents differ from those in
+     * <code>earlier</code>. Scripts which have been removed since are not
+     * included.
+     * <p>
+     * A script whose qualified name is not in <code>earlier</code> is
+     * compared with the script of the same unqualified name in
+     * <code>earlier</code>, such as <code>blfs-13994/atk</code> with
+     * <code>blfs-12345/atk</code>. If <code>earlier</code> has more than one
+     * script of that name, it counts as changed.
+     */
+    public Set<String> getChanged(ScriptManifest earlier) {
+        Map<String, String> byName = new HashMap<String, String>();
+        Set<String> ambiguous = new HashSet<String>();
+        for (Map.Entry<String, String> entry : earlier.hashes.entrySet()) {
+            String name = Script.getUnqualifiedName(entry.getKey());
+            if (byName.put(name, entry.getValue()) != null) {
+                ambiguous.add(name);
+            }
+        }
+
+        Set<String> changed = new TreeSet<String>();
+        for (Map.Entry<String, String> entry : this.hashes.entrySet()) {
+            String before = earlier.hashes.get(entry.getKey());
+            if (before == null) {
+                String name = Script.getUnqualifiedName(entry.getKey());
+                if (!ambiguous.contains(name)) {
+                    before = byName.get(name);
+                }
+            }
+
+            if (!entry.getValue().equals(before)) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        return changed;
+    }
+}
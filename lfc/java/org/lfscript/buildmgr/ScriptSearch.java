@@ -0,0 +1,190 @@
+/*
+ * - ScriptSearch.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package org.lfscript.buildmgr;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.io.File;
+
+/**
+ * An index of the scripts in one or more script directories.
+ * <p>
+ * A search path is a list of script directories (roots), separated by
+ * {@link File#pathSeparator}, such as <code>site:scripts</code>. Every root
+ * has the usual layout of a subdirectory per repository. Roots earlier in
+ * the list take precedence over later ones, and within a root the
+ * <code>extras</code> repository and any other local repository take
+ * precedence over the <i>BLFS</i> repositories, which in turn take precedence
+ * over the <i>LFS</i> repositories (those with a name starting with
+ * <code>blfs</code> and <code>lfs</code>):
+ * <ul>
+ * <li>If the same qualified name, such as <code>blfs-13994/atk</code>,
+ * exists in more than one root, only the first one is used. This way, a
+ * root can hold local versions of a few scripts from another.</li>
+ * <li>An unqualified name resolves to the scripts with that name in the
+ * repositories that come first, by root and then by repository. Only when
+ * more than one of those have it, such as <code>blfs-13994</code> and
+ * <code>blfs-13994-unchecked</code>, the name is ambiguous.</li>
+ * </ul>
+ * A site overlay is therefore a root placed before the usual script
+ * directory, as in <code>site:scripts</code>.
+ * <p>
+ * Every root is listed once when the index is created. After that, finding
+ * the file for a script does not touch the file system, no matter how many
+ * roots there are. A <code>ScriptLoader</code> creates an index when it is
+ * constructed, which is passed on to everything that reads the scripts it
+ * loads.
+ */
+public final class ScriptSearch {
+    private final String search;
+    private final String[] roots;
+
+    /* Position of the root holding a script, by qualified name */
+    private final Map<String, Integer> files;
+
+    /* Qualified names an unqualified name resolves to */
+    private final Map<String, Set<String>> names;
+
+    private ScriptSearch(String search) {
+        this.search = search;
+        this.roots = ScriptSearch.getRoots(search);
+        this.files = new HashMap<String, Integer>();
+        this.names = new HashMap<String, Set<String>>();
+
+        Map<String, Integer> nameRanks = new HashMap<String, Integer>();
+
+        for (int root = 0; root < this.roots.length; root++) {
+            File[] dirs = (new File(this.roots[root])).listFiles();
+            if (dirs == null) {
+                continue;
+            }
+
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+
+                for (File f : files) {
+                    String unq = f.getName();
+                    if (!Script.isUnqualifiedName(unq) || !f.isFile() ||
+                            !f.canRead()) {
+                        continue;
+                    }
+
+                    String qlf = dir.getName() + "/" + unq;
+                    if (this.files.containsKey(qlf)) {
+                        continue;
+                    }
+                    this.files.put(qlf, root);
+
+                    /* Only the repositories that come first count */
+                    int rank = ScriptSearch.getRank(root, dir.getName());
+                    Integer nameRank = nameRanks.get(unq);
+                    if (nameRank == null || rank < nameRank) {
+                        nameRanks.put(unq, rank);
+                        this.names.put(unq, new TreeSet<String>());
+                    } else if (nameRank != rank) {
+                        continue;
+                    }
+
+                    this.names.get(unq).add(qlf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the script directories in the <code>search</code> path, and
+     * returns the resulting index.
+     */
+    public static ScriptSearch index(String search) {
+        return new ScriptSearch(search);
+    }
+
+    /** Returns the script directories in the <code>search</code> path. */
+    public static String[] getRoots(String search) {
+        return search.split(File.pathSeparator, -1);
+    }
+
+    /*
+     * Returns the precedence of the repository 'repo' in the root at
+     * position 'root'; lower comes first. Used by the constructor and by
+     * ScriptLoader.getExistingNames(String, String).
+     */
+    static int getRank(int root, String repo) {
+        int rank = 0;
+        if (repo.startsWith("lfs")) {
+            rank = 2;
+        } else if (repo.startsWith("blfs")) {
+            rank = 1;
+        }
+
+        return root * 3 + rank;
+    }
+
+    /**
+     * Returns the search path this index was created for, as given to
+     * {@link #index(String)}.
+     */
+    public String getSearch() {
+        return this.search;
+    }
+
+    /**
+     * Returns the file for the script with the qualified name
+     * <code>qlf</code>. A script which was not found when this index was
+     * created is looked for in the first root.
+     */
+    public File getFile(String qlf) {
+        Integer root = this.files.get(qlf);
+
+        return new File(this.roots[root == null ? 0 : root], qlf);
+    }
+
+    /** Returns the script directories in this search path. */
+    public String[] getRoots() {
+        return this.roots.clone();
+    }
+
+    /**
+     * Returns the qualified names the unqualified name <code>unq</code>
+     * resolves to, or an empty <code>Set</code> if there are none.
+     */
+    public Set<String> getNames(String unq) {
+        Set<String> found = this.names.get(unq);
+
+        return found == null ? new TreeSet<String>() :
+                new TreeSet<String>(found);
+    }
+
+    /** Returns the qualified names of all scripts in this search path. */
+    public Set<String> getQualifiedNames() {
+        return new TreeSet<String>(this.files.keySet());
+    }
+}
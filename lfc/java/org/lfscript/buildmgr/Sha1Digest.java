@@ -0,0 +1,148 @@
+/*
+ * - Sha1Digest.java -
+ *
+ * Copyright (c) 2014 Marcel van den Boer
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package org.lfscript.buildmgr;
+
+/**
+ * Computes SHA-1 hashes. This does the same as a
+ * <code>java.security.MessageDigest</code> for the <code>SHA-1</code>
+ * algorithm, which the class library of the VM LFClass runs on does not
+ * have.
+ */
+final class Sha1Digest {
+    private final int[] state;
+    private final byte[] block;
+    private final int[] words;
+    private int blockLength;
+    private long length;
+
+    Sha1Digest() {
+        this.state = new int[5];
+        this.block = new byte[64];
+        this.words = new int[80];
+        this.reset();
+    }
+
+    /* Starts a new hash, discarding any input that was given so far */
+    void reset() {
+        this.state[0] = 0x67452301;
+        this.state[1] = 0xefcdab89;
+        this.state[2] = 0x98badcfe;
+        this.state[3] = 0x10325476;
+        this.state[4] = 0xc3d2e1f0;
+        this.blockLength = 0;
+        this.length = 0;
+    }
+
+    void update(byte[] input) {
+        this.update(input, 0, input.length);
+    }
+
+    void update(byte[] input, int offset, int count) {
+        this.length += count;
+
+        for (int i = offset; i < offset + count; i++) {
+            this.block[this.blockLength++] = input[i];
+            if (this.blockLength == 64) {
+                this.compress();
+                this.blockLength = 0;
+            }
+        }
+    }
+
+    /* Returns the hash of all input given since the last reset, and resets */
+    byte[] digest() {
+        long bits = this.length * 8;
+
+        this.update(new byte[] { (byte) 0x80 });
+        while (this.blockLength != 56) {
+            this.update(new byte[] { 0 });
+        }
+        for (int i = 7; i >= 0; i--) {
+            this.update(new byte[] { (byte) (bits >>> (i * 8)) });
+        }
+
+        byte[] hash = new byte[20];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (this.state[i / 4] >>> (24 - (i % 4) * 8));
+        }
+
+        this.reset();
+
+        return hash;
+    }
+
+    /* Adds the 64 bytes in 'block' to the state. Used only by update() */
+    private void compress() {
+        int[] w = this.words;
+
+        for (int i = 0; i < 16; i++) {
+            w[i] = (this.block[i * 4] & 0xff) << 24 |
+                    (this.block[i * 4 + 1] & 0xff) << 16 |
+                    (this.block[i * 4 + 2] & 0xff) << 8 |
+                    (this.block[i * 4 + 3] & 0xff);
+        }
+        for (int i = 16; i < 80; i++) {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            w[i] = (x << 1) | (x >>> 31);
+        }
+
+        int a = this.state[0];
+        int b = this.state[1];
+        int c = this.state[2];
+        int d = this.state[3];
+        int e = this.state[4];
+
+        for (int i = 0; i < 80; i++) {
+            int f = 0;
+            int k = 0;
+            if (i < 20) {
+                f = (b & c) | (~b & d);
+                k = 0x5a827999;
+            } else if (i < 40) {
+                f = b ^ c ^ d;
+                k = 0x6ed9eba1;
+            } else if (i < 60) {
+                f = (b & c) | (b & d) | (c & d);
+                k = 0x8f1bbcdc;
+            } else {
+                f = b ^ c ^ d;
+                k = 0xca62c1d6;
+            }
+
+            int t = ((a << 5) | (a >>> 27)) + f + e + k + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = t;
+        }
+
+        this.state[0] += a;
+        this.state[1] += b;
+        this.state[2] += c;
+        this.state[3] += d;
+        this.state[4] += e;
+    }
+}